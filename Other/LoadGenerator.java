@@ -0,0 +1,423 @@
+/*
+ javac LoadGenerator.java
+ java LoadGenerator localhost 5000 rate=200 duration=30 clients=50
+ java LoadGenerator localhost 5000 rate=500 mix=UPLOAD_DATA:10,GET_RANKING:90 users=10000
+ java LoadGenerator localhost 5000 mix=UPLOAD_IMAGE:1 image=avatar.jpg
+ (伺服器以 -Dserver.mode=nio 啟動時跑同一組參數，結果應與 thread 模式一樣沒有失敗)
+*/
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.imageio.ImageIO;
+
+/**
+ * 開放式（open-loop）負載產生器：依固定的目標速率排定每個請求的預定送出時間，
+ * 不因伺服器變慢而降低送出速率，由多個虛擬用戶端（各自一條協定 v2 持續連線）依序取出執行。
+ *
+ * 所有虛擬用戶端都在忙時請求會在佇列中等待，回應時間從「預定送出時間」起算，
+ * 因此包含排隊時間（修正 coordinated omission）；另外也列出從實際送出起算的服務時間作為對照。
+ *
+ * 注意：UPLOAD_DATA 與 UPLOAD_IMAGE 會寫入伺服器設定的上游，壓測時請讓伺服器指向測試用的上游。
+ */
+public class LoadGenerator {
+    private static final String[] OPERATIONS = {"UPLOAD_DATA", "GET_RANKING", "UPLOAD_IMAGE"};
+    // 伺服器回覆命令失敗時的開頭（UTF-8）
+    private static final byte[] FAILURE_PREFIX = "❌".getBytes(StandardCharsets.UTF_8);
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // 測試結束後等待未完成請求的時間上限
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    /**
+     * 壓測參數（命令列以 key=value 指定）
+     */
+    static class Options {
+        String host;
+        int port;
+        double rate = 100;             // 每秒請求數
+        int durationSeconds = 30;
+        int clients = 50;              // 虛擬用戶端（連線）數
+        int users = 1000;              // UPLOAD_DATA / UPLOAD_IMAGE 使用的不同姓名數量
+        int imageKB = 50;              // 未指定圖片檔時產生的測試圖片大小
+        String image;                  // 上傳用的圖片檔
+        String mix = "UPLOAD_DATA:20,GET_RANKING:75,UPLOAD_IMAGE:5";
+
+        static Options parse(String host, int port, String[] args, int from) {
+            Options o = new Options();
+            o.host = host;
+            o.port = port;
+            for (int i = from; i < args.length; i++) {
+                int eq = args[i].indexOf('=');
+                if (eq < 0) throw new IllegalArgumentException("參數格式應為 key=value: " + args[i]);
+                String key = args[i].substring(0, eq);
+                String value = args[i].substring(eq + 1);
+                switch (key) {
+                    case "rate": o.rate = Double.parseDouble(value); break;
+                    case "duration": o.durationSeconds = Integer.parseInt(value); break;
+                    case "clients": o.clients = Integer.parseInt(value); break;
+                    case "users": o.users = Integer.parseInt(value); break;
+                    case "imageKB": o.imageKB = Integer.parseInt(value); break;
+                    case "image": o.image = value; break;
+                    case "mix": o.mix = value; break;
+                    default: throw new IllegalArgumentException("未知的參數: " + key);
+                }
+            }
+            if (o.rate <= 0 || o.durationSeconds <= 0 || o.clients <= 0 || o.users <= 0) {
+                throw new IllegalArgumentException("rate、duration、clients、users 必須大於 0");
+            }
+            return o;
+        }
+    }
+
+    /**
+     * 一個排定的請求：預定送出時間與操作種類
+     */
+    private static final class Task {
+        final long intendedNanos;
+        final int op;
+
+        Task(long intendedNanos, int op) {
+            this.intendedNanos = intendedNanos;
+            this.op = op;
+        }
+    }
+
+    private static final Task STOP = new Task(0, -1);
+
+    /**
+     * 某一種操作的結果（由單一虛擬用戶端寫入，結束後合併）
+     */
+    private static final class Samples {
+        long[] latency = new long[1024];     // 從預定時間起算（含排隊）
+        long[] service = new long[1024];     // 從實際送出起算
+        int count;
+        long errors;
+
+        void add(long latencyNanos, long serviceNanos) {
+            if (count == latency.length) {
+                latency = Arrays.copyOf(latency, count * 2);
+                service = Arrays.copyOf(service, count * 2);
+            }
+            latency[count] = latencyNanos;
+            service[count] = serviceNanos;
+            count++;
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.latency[i], other.service[i]);
+            }
+            errors += other.errors;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java LoadGenerator [server_ip] [port] [key=value ...]");
+            System.out.println("  rate=100        每秒送出的請求數（開放式，不受回應速度影響）");
+            System.out.println("  duration=30     測試秒數");
+            System.out.println("  clients=50      虛擬用戶端數（每個一條持續連線）");
+            System.out.println("  mix=UPLOAD_DATA:20,GET_RANKING:75,UPLOAD_IMAGE:5  各命令的比例");
+            System.out.println("  users=1000      上傳時使用的不同姓名數量");
+            System.out.println("  image=檔案路徑  UPLOAD_IMAGE 使用的圖片，未指定時產生約 imageKB=50 的測試圖片");
+            System.exit(1);
+        }
+        run(Options.parse(args[0], Integer.parseInt(args[1]), args, 2));
+    }
+
+    public static void run(Options o) throws Exception {
+        int[] weights = parseMix(o.mix);
+        byte[] image = weights[2] > 0 ? loadImage(o) : new byte[0];
+        int weightSum = Arrays.stream(weights).sum();
+
+        System.out.println("\n🚀 開放式負載測試：" + o.rate + " 請求/秒，" + o.durationSeconds + " 秒，"
+            + o.clients + " 個虛擬用戶端，比例 " + o.mix);
+        if (weights[2] > 0) System.out.println("📊 測試圖片大小: " + (image.length / 1024) + " KB");
+
+        BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+        AtomicLong completed = new AtomicLong();
+        List<Samples[]> results = new ArrayList<>();
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < o.clients; i++) {
+            Samples[] samples = {new Samples(), new Samples(), new Samples()};
+            results.add(samples);
+            VirtualClient client = new VirtualClient(o, queue, samples, image, completed, i);
+            Thread t = new Thread(client, "virtual-client-" + i);
+            t.setDaemon(true);
+            t.start();
+            clients.add(t);
+        }
+
+        // 依固定間隔排定請求：預定時間只由起始時間與序號決定，不等待前一個請求完成
+        Random random = new Random(1);
+        long interval = (long) (1_000_000_000L / o.rate);
+        long total = (long) (o.rate * o.durationSeconds);
+        long start = System.nanoTime();
+        long nextReport = start + REPORT_INTERVAL_NANOS;
+        for (long i = 0; i < total; i++) {
+            long intended = start + i * interval;
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            queue.add(new Task(intended, pick(weights, weightSum, random)));
+
+            if (System.nanoTime() >= nextReport) {
+                System.out.println("⏱ " + (nextReport - start) / 1_000_000_000L + " 秒：已送出 " + (i + 1)
+                    + "，已完成 " + completed.get() + "，排隊中 " + queue.size());
+                nextReport += REPORT_INTERVAL_NANOS;
+            }
+        }
+        long scheduledEnd = System.nanoTime();
+
+        for (int i = 0; i < o.clients; i++) {
+            queue.add(STOP);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS);
+        for (Thread t : clients) {
+            t.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        }
+        long end = System.nanoTime();
+        boolean unfinished = clients.stream().anyMatch(Thread::isAlive);
+
+        report(o, results, total, start, scheduledEnd, end, unfinished);
+    }
+
+    /**
+     * 虛擬用戶端：一條持續連線，一次處理一個請求；連線出錯時記錄錯誤並在下一個請求重新連線。
+     * 伺服器不接受持續連線時每個請求各自連線。回應以 ❌ 開頭（命令失敗）也計為錯誤
+     */
+    private static final class VirtualClient implements Runnable {
+        private final Options o;
+        private final BlockingQueue<Task> queue;
+        private final Samples[] samples;
+        private final byte[] image;
+        private final AtomicLong completed;
+        private final Random random;
+        private Socket socket;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private boolean keepAlive;
+        private int requestId;
+
+        VirtualClient(Options o, BlockingQueue<Task> queue, Samples[] samples, byte[] image, AtomicLong completed, int id) {
+            this.o = o;
+            this.queue = queue;
+            this.samples = samples;
+            this.image = image;
+            this.completed = completed;
+            this.random = new Random(1000 + id);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Task task = queue.take();
+                    if (task == STOP) break;
+                    long sent = System.nanoTime();
+                    try {
+                        if (send(task.op)) {
+                            long done = System.nanoTime();
+                            samples[task.op].add(done - task.intendedNanos, done - sent);
+                        } else {
+                            samples[task.op].errors++;
+                        }
+                    } catch (IOException e) {
+                        samples[task.op].errors++;
+                        close();
+                    }
+                    completed.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * 送出一個請求並讀完回應，回應為命令失敗（❌ 開頭）時回傳 false
+         */
+        private boolean send(int op) throws IOException {
+            if (socket == null) connect();
+            String name = "壓測使用者_" + random.nextInt(o.users);
+            byte[] payload;
+            switch (OPERATIONS[op]) {
+                case "UPLOAD_DATA":
+                    payload = TestClient.commandPayload("UPLOAD_DATA", name + "," + random.nextInt(100000) / 10.0);
+                    break;
+                case "UPLOAD_IMAGE":
+                    ByteArrayOutputStream buf = new ByteArrayOutputStream(image.length + 256);
+                    DataOutputStream p = new DataOutputStream(buf);
+                    p.writeUTF("UPLOAD_IMAGE");
+                    p.writeUTF(name);
+                    p.writeLong(image.length);
+                    p.write(image);
+                    payload = buf.toByteArray();
+                    break;
+                default:
+                    payload = TestClient.commandPayload("GET_RANKING");
+            }
+            int id = ++requestId;
+            TestClient.writeRequestV2(out, id, payload);
+            out.flush();
+            ResponsePrefix body = new ResponsePrefix();
+            if (TestClient.readResponseV2(in, body) != id) {
+                throw new IOException("回應順序錯誤");
+            }
+            // 伺服器回應後會關閉不是持續連線的連線，下一個請求重新連線
+            if (!keepAlive) close();
+            return !body.startsWith(FAILURE_PREFIX);
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket(o.host, o.port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            TestClient.writeHandshakeV2(out, TestClient.V2_CAP_KEEP_ALIVE);
+            out.flush();
+            keepAlive = (TestClient.readHandshakeV2(in) & TestClient.V2_CAP_KEEP_ALIVE) != 0;
+        }
+
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * 只保留回應開頭幾個位元組（判斷是否為 ❌ 開頭的失敗訊息），其餘內容丟棄
+     */
+    private static final class ResponsePrefix extends OutputStream {
+        private final byte[] prefix = new byte[8];
+        private int length;
+
+        @Override
+        public void write(int b) {
+            if (length < prefix.length) prefix[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            int n = Math.min(len, prefix.length - length);
+            System.arraycopy(b, off, prefix, length, n);
+            length += n;
+        }
+
+        boolean startsWith(byte[] expected) {
+            if (length < expected.length) return false;
+            for (int i = 0; i < expected.length; i++) {
+                if (prefix[i] != expected[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private static void report(Options o, List<Samples[]> results, long scheduled, long start, long scheduledEnd,
+                               long end, boolean unfinished) {
+        Samples all = new Samples();
+        Samples[] byOp = {new Samples(), new Samples(), new Samples()};
+        for (Samples[] samples : results) {
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                byOp[op].addAll(samples[op]);
+                all.addAll(samples[op]);
+            }
+        }
+        double seconds = (end - start) / 1e9;
+        long finished = all.count + all.errors;
+
+        System.out.println("\n========== 負載測試結果 ==========");
+        System.out.println("目標速率: " + o.rate + " 請求/秒，實際送出速率: "
+            + String.format("%.1f", scheduled / ((scheduledEnd - start) / 1e9)) + " 請求/秒");
+        System.out.println("排定: " + scheduled + "，完成: " + finished + "，成功: " + all.count + "，錯誤: " + all.errors
+            + (unfinished ? "（" + DRAIN_TIMEOUT_SECONDS + " 秒內仍有請求未完成）" : ""));
+        System.out.println("吞吐量: " + String.format("%.1f", all.count / seconds) + " 請求/秒（總耗時 "
+            + String.format("%.2f", seconds) + " 秒）");
+        System.out.println("\n回應時間（從預定送出時間起算，含排隊），單位 ms：");
+        printHeader();
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            if (byOp[op].count + byOp[op].errors > 0) printRow(OPERATIONS[op], byOp[op], byOp[op].latency);
+        }
+        printRow("全部", all, all.latency);
+        System.out.println("\n服務時間（從實際送出起算，未修正），單位 ms：");
+        printHeader();
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            if (byOp[op].count + byOp[op].errors > 0) printRow(OPERATIONS[op], byOp[op], byOp[op].service);
+        }
+        printRow("全部", all, all.service);
+    }
+
+    private static void printHeader() {
+        System.out.println(String.format("%-14s %8s %6s %9s %9s %9s %9s %9s",
+            "命令", "成功", "錯誤", "p50", "p90", "p99", "p99.9", "max"));
+    }
+
+    private static void printRow(String name, Samples s, long[] values) {
+        long[] sorted = Arrays.copyOf(values, s.count);
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-14s %8d %6d %9.2f %9.2f %9.2f %9.2f %9.2f", name, s.count, s.errors,
+            percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+            percentile(sorted, 0.999), percentile(sorted, 1.0)));
+    }
+
+    private static double percentile(long[] sorted, double q) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    /**
+     * 解析 "UPLOAD_DATA:20,GET_RANKING:75" 為與 OPERATIONS 對應的權重
+     */
+    static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            int op = Arrays.asList(OPERATIONS).indexOf(kv[0].trim());
+            if (op < 0 || kv.length != 2) throw new IllegalArgumentException("無效的比例設定: " + part);
+            weights[op] = Integer.parseInt(kv[1].trim());
+        }
+        if (Arrays.stream(weights).sum() <= 0) throw new IllegalArgumentException("比例總和必須大於 0");
+        return weights;
+    }
+
+    private static int pick(int[] weights, int sum, Random random) {
+        int r = random.nextInt(sum);
+        for (int op = 0; op < weights.length; op++) {
+            r -= weights[op];
+            if (r < 0) return op;
+        }
+        return weights.length - 1;
+    }
+
+    /**
+     * 讀取指定的圖片檔，或產生一張約 imageKB 大小的雜訊 PNG（可正常解碼，伺服器會產生縮圖）
+     */
+    private static byte[] loadImage(Options o) throws IOException {
+        if (o.image != null) return Files.readAllBytes(Paths.get(o.image));
+        // 雜訊幾乎無法壓縮，每個像素約 3 bytes
+        int side = Math.max(1, (int) Math.sqrt(o.imageKB * 1024 / 3.0));
+        BufferedImage img = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(7);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                img.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", buf);
+        return buf.toByteArray();
+    }
+}
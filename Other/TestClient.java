@@ -5,6 +5,8 @@
 import java.net.*;
 import java.io.*;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 public class TestClient {
@@ -27,7 +29,11 @@ public class TestClient {
             System.out.println("1. 上傳一般資料（姓名 + 碳排放量）");
             System.out.println("2. 上傳圖片檔案");
             System.out.println("3. 查詢排行榜");
-            System.out.println("4. 壓力測試（上傳多個圖片）");
+            System.out.println("4. 壓力測試（多用戶端混合負載）");
+            System.out.println("5. 查詢排行榜（含圖片，協定 v2）");
+            System.out.println("6. 持續連線 + 管線化測試（協定 v2）");
+            System.out.println("7. 分頁查詢排行榜（協定 v2）");
+            System.out.println("8. 伺服器統計（STATS）");
             System.out.println("0. 退出");
             System.out.print("請選擇: ");
 
@@ -47,6 +53,18 @@ public class TestClient {
                     case "4":
                         stressTest(serverIP, port, scanner);
                         break;
+                    case "5":
+                        getRankingWithImagesV2(serverIP, port);
+                        break;
+                    case "6":
+                        pipelineTest(serverIP, port, scanner);
+                        break;
+                    case "7":
+                        getRankingPages(serverIP, port, scanner);
+                        break;
+                    case "8":
+                        getStats(serverIP, port);
+                        break;
                     case "0":
                         System.out.println("再見！");
                         scanner.close();
@@ -171,81 +189,247 @@ public class TestClient {
     }
 
     /**
-     * 壓力測試：連續上傳多個圖片
+     * 查詢伺服器統計（各命令與上游呼叫的延遲分佈）
      */
-    private static void stressTest(String serverIP, int port, Scanner scanner) throws IOException {
-        System.out.print("請輸入圖片檔案路徑: ");
-        String filePath = scanner.nextLine();
-        System.out.print("請輸入上傳次數: ");
-        int count = Integer.parseInt(scanner.nextLine());
+    private static void getStats(String serverIP, int port) throws IOException {
+        try (Socket socket = new Socket(serverIP, port);
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+             DataInputStream in = new DataInputStream(socket.getInputStream())) {
 
-        File file = new File(filePath);
-        if (!file.exists()) {
-            System.out.println("❌ 檔案不存在: " + filePath);
-            return;
+            out.writeUTF("STATS");
+            out.flush();
+
+            System.out.println("\n" + in.readUTF());
         }
+    }
 
-        System.out.println("\n🚀 開始壓力測試，將上傳 " + count + " 次");
-        long totalStartTime = System.currentTimeMillis();
-        int successCount = 0;
-        int failCount = 0;
+    /**
+     * 以協定 v2 查詢含圖片的排行榜（回應分成多個訊框，不受 writeUTF 64KB 限制）
+     */
+    private static void getRankingWithImagesV2(String serverIP, int port) throws IOException {
+        long startTime = System.currentTimeMillis();
 
-        for (int i = 1; i <= count; i++) {
-            System.out.println("\n--- 第 " + i + " 次上傳 ---");
-            try {
-                String name = "測試使用者_" + i;
-                
-                try (Socket socket = new Socket(serverIP, port);
-                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
-                     DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
-                     FileInputStream fis = new FileInputStream(file)) {
-
-                    socket.setSendBufferSize(BUFFER_SIZE);
-                    socket.setTcpNoDelay(false);
-
-                    out.writeUTF("UPLOAD_IMAGE");
-                    out.writeUTF(name);
-                    out.writeLong(file.length());
-                    out.flush();
-
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    int bytesRead;
-
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        out.write(buffer, 0, bytesRead);
-                    }
-
-                    out.flush();
-                    String response = in.readUTF();
-                    System.out.println("回應: " + response);
-                    
-                    if (response.contains("✅")) {
-                        successCount++;
-                    } else {
-                        failCount++;
-                    }
-                }
-            } catch (Exception e) {
-                System.out.println("❌ 上傳失敗: " + e.getMessage());
-                failCount++;
+        try (Socket socket = new Socket(serverIP, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE))) {
+
+            writeHandshakeV2(out, V2_CAP_HEADERS);
+            writeRequestV2(out, 1, commandPayload("GET_RANKING_WITH_IMAGE"));
+            out.flush();
+            readHandshakeV2(in);
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            List<String> headers = new ArrayList<>();
+            readResponseV2(in, body, headers);
+            String response = body.toString("UTF-8");
+
+            double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+            System.out.println("\n收到 " + (body.size() / 1024) + " KB，耗時 " + String.format("%.2f", seconds) + " 秒");
+            for (String header : headers) {
+                System.out.println("   " + header);
             }
+            System.out.println(response.substring(0, Math.min(500, response.length())));
+        }
+    }
 
-            // 每次上傳之間暫停 500ms
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * 在同一個持續連線上以 GET_RANKING_PAGE 逐頁讀取排行榜，顯示每頁的耗時
+     */
+    private static void getRankingPages(String serverIP, int port, Scanner scanner) throws IOException {
+        System.out.print("請輸入每頁筆數: ");
+        int limit = Integer.parseInt(scanner.nextLine().trim());
+        System.out.print("是否包含圖片 (y/n): ");
+        boolean withImages = scanner.nextLine().trim().equalsIgnoreCase("y");
+
+        try (Socket socket = new Socket(serverIP, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE))) {
+
+            writeHandshakeV2(out, V2_CAP_KEEP_ALIVE);
+            out.flush();
+            boolean keepAlive = (readHandshakeV2(in) & V2_CAP_KEEP_ALIVE) != 0;
+
+            int offset = 0;
+            int requestId = 1;
+            while (true) {
+                long start = System.nanoTime();
+                String command = "GET_RANKING_PAGE " + offset + " " + limit + (withImages ? " withImages" : "");
+                writeRequestV2(out, requestId++, commandPayload(command));
+                out.flush();
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                readResponseV2(in, body);
+                String page = body.toString("UTF-8");
+                // 每筆資料都有一個 "rank" 欄位
+                int rows = page.split("\"rank\":", -1).length - 1;
+                double ms = (System.nanoTime() - start) / 1e6;
+                System.out.println("第 " + (offset + 1) + " 名起 " + rows + " 筆，" +
+                    (body.size() / 1024) + " KB，耗時 " + String.format("%.1f", ms) + " ms");
+                System.out.println("   " + page.substring(0, Math.min(200, page.length())));
+
+                offset += rows;
+                if (rows < limit || !keepAlive) break;
             }
         }
+    }
 
-        long totalEndTime = System.currentTimeMillis();
-        double totalSeconds = (totalEndTime - totalStartTime) / 1000.0;
+    /**
+     * 在同一個連線上一次送出多個 GET_RANKING 請求（不等待回應），再依序讀回
+     */
+    private static void pipelineTest(String serverIP, int port, Scanner scanner) throws IOException {
+        System.out.print("請輸入請求數量: ");
+        int count = Integer.parseInt(scanner.nextLine());
 
-        System.out.println("\n========== 壓力測試結果 ==========");
-        System.out.println("總次數: " + count);
-        System.out.println("成功: " + successCount);
-        System.out.println("失敗: " + failCount);
-        System.out.println("總耗時: " + String.format("%.2f", totalSeconds) + " 秒");
-        System.out.println("平均每次: " + String.format("%.2f", totalSeconds / count) + " 秒");
+        long startTime = System.currentTimeMillis();
+
+        try (Socket socket = new Socket(serverIP, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE))) {
+
+            writeHandshakeV2(out, V2_CAP_KEEP_ALIVE);
+            out.flush();
+            if ((readHandshakeV2(in) & V2_CAP_KEEP_ALIVE) == 0) {
+                System.out.println("❌ 伺服器未接受持續連線");
+                return;
+            }
+
+            byte[] payload = commandPayload("GET_RANKING");
+            for (int i = 1; i <= count; i++) {
+                writeRequestV2(out, i, payload);
+            }
+            out.flush();
+
+            int received = 0;
+            for (int i = 1; i <= count; i++) {
+                int requestId = readResponseV2(in, new ByteArrayOutputStream());
+                if (requestId != i) {
+                    System.out.println("❌ 回應順序錯誤：預期 #" + i + "，收到 #" + requestId);
+                }
+                received++;
+            }
+
+            double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+            System.out.println("✅ 收到 " + received + " 個回應，耗時 " + String.format("%.3f", seconds) + " 秒");
+        }
+    }
+
+    // ========== 協定 v2 ==========
+    // 交握：'C' 'F' 'P' + 版本 + 功能旗標(int)；訊框：type(1) + flags(1) + requestId(int) + length(int) + payload
+
+    static final byte[] V2_MAGIC = {'C', 'F', 'P'};
+    static final int V2_VERSION = 2;
+    static final byte V2_TYPE_REQUEST = 1;
+    static final byte V2_TYPE_RESPONSE = 2;
+    static final byte V2_TYPE_ERROR = 3;
+    static final byte V2_TYPE_HEADER = 4;
+    static final byte V2_FLAG_END = 1;
+    static final int V2_CAP_KEEP_ALIVE = 1;
+    static final int V2_CAP_HEADERS = 8;
+
+    static void writeHandshakeV2(DataOutputStream out, int flags) throws IOException {
+        out.write(V2_MAGIC);
+        out.writeByte(V2_VERSION);
+        out.writeInt(flags);
+    }
+
+    /**
+     * 讀取伺服器的交握回覆，回傳伺服器接受的功能旗標
+     */
+    static int readHandshakeV2(DataInputStream in) throws IOException {
+        byte[] magic = new byte[V2_MAGIC.length];
+        in.readFully(magic);
+        int version = in.readUnsignedByte();
+        int flags = in.readInt();
+        if (!java.util.Arrays.equals(magic, V2_MAGIC) || version != V2_VERSION) {
+            throw new IOException("伺服器不支援協定 v2");
+        }
+        return flags;
+    }
+
+    /**
+     * 把命令與參數編碼成請求 payload（格式與 v1 相同：每個欄位都是 writeUTF）
+     */
+    static byte[] commandPayload(String command, String... args) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeUTF(command);
+        for (String arg : args) {
+            out.writeUTF(arg);
+        }
+        return buf.toByteArray();
+    }
+
+    static void writeRequestV2(DataOutputStream out, int requestId, byte[] payload) throws IOException {
+        out.writeByte(V2_TYPE_REQUEST);
+        out.writeByte(0);
+        out.writeInt(requestId);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * 讀取一個完整回應（一個或多個訊框，直到 FLAG_END），內容寫入 sink，回傳 requestId
+     */
+    static int readResponseV2(DataInputStream in, OutputStream sink) throws IOException {
+        return readResponseV2(in, sink, null);
+    }
+
+    /**
+     * 同上，HEADER 訊框（"名稱: 值"）加入 headers（為 null 時略過）
+     */
+    static int readResponseV2(DataInputStream in, OutputStream sink, List<String> headers) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (true) {
+            byte type = in.readByte();
+            byte flags = in.readByte();
+            int requestId = in.readInt();
+            int length = in.readInt();
+
+            if (type == V2_TYPE_HEADER) {
+                byte[] line = new byte[length];
+                in.readFully(line);
+                if (headers != null) headers.add(new String(line, "UTF-8"));
+                continue;
+            }
+
+            int remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (n == -1) throw new EOFException("連接中斷");
+                sink.write(buffer, 0, n);
+                remaining -= n;
+            }
+
+            if (type == V2_TYPE_ERROR) {
+                throw new IOException("伺服器回覆錯誤訊框");
+            }
+            if ((flags & V2_FLAG_END) != 0) {
+                return requestId;
+            }
+        }
+    }
+
+    /**
+     * 壓力測試：以開放式負載產生器（LoadGenerator）從多個虛擬用戶端同時送出混合請求
+     */
+    private static void stressTest(String serverIP, int port, Scanner scanner) throws Exception {
+        LoadGenerator.Options options = LoadGenerator.Options.parse(serverIP, port, new String[0], 0);
+        System.out.print("每秒請求數 [" + options.rate + "]: ");
+        String line = scanner.nextLine().trim();
+        if (!line.isEmpty()) options.rate = Double.parseDouble(line);
+        System.out.print("測試秒數 [" + options.durationSeconds + "]: ");
+        line = scanner.nextLine().trim();
+        if (!line.isEmpty()) options.durationSeconds = Integer.parseInt(line);
+        System.out.print("虛擬用戶端數 [" + options.clients + "]: ");
+        line = scanner.nextLine().trim();
+        if (!line.isEmpty()) options.clients = Integer.parseInt(line);
+        System.out.print("命令比例 [" + options.mix + "]: ");
+        line = scanner.nextLine().trim();
+        if (!line.isEmpty()) options.mix = line;
+        System.out.print("圖片檔案路徑（留空則產生測試圖片）: ");
+        line = scanner.nextLine().trim();
+        if (!line.isEmpty()) options.image = line;
+
+        LoadGenerator.run(options);
     }
 }
\ No newline at end of file
@@ -698,7 +698,7 @@ public class MainActivity extends AppCompatActivity
                 System.out.println("伺服器回應: " + response);
                 System.out.println("總耗時: " + String.format("%.2f", seconds) + " 秒");
 
-                // ✅ 解析回應（伺服器會返回所有資料）
+                // ✅ 解析回應（伺服器會返回所有資料；以 -Dserver.upload.fastAck=true 啟動時只回覆 {"status":"ok","seq":序號,...}）
 //                parseAndDisplayResponse(response, name, total);
 
             } catch (IOException e) {
@@ -3,7 +3,6 @@ package com.example.myapplication2;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
-import android.util.Base64;
 import android.util.Log;
 import android.widget.ImageView;
 import android.widget.TableLayout;
@@ -14,20 +13,46 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.InflaterOutputStream;
 
 public class RankingActivity extends AppCompatActivity {
+    // 協定 v2：交握 'C' 'F' 'P' + 版本 + 功能旗標；訊框 type + flags + requestId + length + payload
+    private static final byte[] PROTOCOL_MAGIC = {'C', 'F', 'P'};
+    private static final int PROTOCOL_VERSION = 2;
+    private static final byte TYPE_REQUEST = 1;
+    private static final byte TYPE_ERROR = 3;
+    private static final byte FLAG_END = 1;
+    private static final byte FLAG_COMPRESSED = 4;
+    private static final int CAP_KEEP_ALIVE = 1;
+    private static final int CAP_DEFLATE = 2;
+    // 排行榜圖片顯示尺寸（px），向伺服器要求同尺寸的縮圖
+    private static final int AVATAR_SIZE = 150;
+
+    // 上次取得的排行榜與其版本號，重新開啟畫面時只向伺服器要求之後的變動
+    private static final Map<String, JSONObject> cachedRanking = new LinkedHashMap<>();
+    private static long rankingVersion = 0;
+
     private TableLayout tableRanking;
     String serverIP = Config.SERVER_IP;
     int port = Config.SERVER_PORT;
@@ -49,52 +74,59 @@ public class RankingActivity extends AppCompatActivity {
             socket = new Socket(serverIP, port);
             socket.setReceiveBufferSize(65536); // 64KB 緩衝區
 
-            out = new DataOutputStream(socket.getOutputStream());
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
             in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
 
-            // ✅ 傳送排行榜請求(含圖片)
-            out.writeUTF("GET_RANKING_WITH_IMAGE");
+            // ✅ 以協定 v2 持續連線傳送排行榜差異請求，回應每筆只帶圖片雜湊
+            long since;
+            synchronized (cachedRanking) {
+                since = rankingVersion;
+            }
+            writeHandshake(out);
+            writeRequest(out, 1, "GET_RANKING_SINCE " + since);
             out.flush();
-            Log.d("Ranking", "已發送 GET_RANKING_WITH_IMAGE 請求");
+            boolean keepAlive = (readHandshake(in) & CAP_KEEP_ALIVE) != 0;
+            Log.d("Ranking", "已發送 GET_RANKING_SINCE " + since + " 請求 (v2)");
 
             // 🔹 使用 InputStream 讀取大型資料
-            String response = readLargeResponse(in);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            readLargeResponse(in, baos);
+            String response = baos.toString("UTF-8");
 
             Log.d("Ranking", "收到回應，長度: " + response.length() + " 字元 (" + (response.length() / 1024) + " KB)");
             Log.d("Ranking", "前 500 字元: " + response.substring(0, Math.min(500, response.length())));
 
-            // ✅ 提取 JSON 陣列部分
-            int start = response.indexOf('[');
-            int end = response.lastIndexOf(']');
-
-            if (start < 0 || end < 0) {
-                Log.e("Ranking", "無法找到 JSON 陣列: start=" + start + ", end=" + end);
+            if (!response.startsWith("{")) {
+                Log.e("Ranking", "伺服器回傳格式錯誤: " + response);
                 runOnUiThread(() -> showError("伺服器回傳格式錯誤"));
                 return;
             }
 
-            String jsonPart = response.substring(start, end + 1);
-            Log.d("Ranking", "JSON 部分長度: " + jsonPart.length() + " 字元");
-
-            JSONArray arr = new JSONArray(jsonPart);
+            // ✅ 把變動套用到上次的排行榜
+            JSONArray arr = applyDelta(new JSONObject(response));
             Log.d("Ranking", "JSON 陣列大小: " + arr.length());
 
+            // 🔹 同一雜湊的圖片內容永遠不變，只下載本機快取中還沒有的圖片
+            File avatarCache = new File(getCacheDir(), "avatars");
+            avatarCache.mkdirs();
+            if (keepAlive) {
+                fetchMissingImages(out, in, arr, avatarCache);
+            } else {
+                Log.w("Ranking", "⚠️ 伺服器不接受持續連線，只顯示已快取的圖片");
+            }
+
             List<UserData> list = new ArrayList<>();
 
             for (int i = 0; i < arr.length(); i++) {
                 JSONObject obj = arr.getJSONObject(i);
                 String name = obj.optString("name", "未知");
                 String total = obj.optString("total", "0");
-                String imageBase64 = obj.optString("image", "");
+                String imageHash = obj.optString("imageHash", "");
 
                 Log.d("Ranking", "======= 使用者 " + (i+1) + " =======");
                 Log.d("Ranking", "姓名: " + name);
                 Log.d("Ranking", "碳排放: " + total);
-                Log.d("Ranking", "圖片 Base64 長度: " + imageBase64.length() + " 字元");
-
-                if (!imageBase64.isEmpty()) {
-                    Log.d("Ranking", "Base64 前 100 字元: " + imageBase64.substring(0, Math.min(100, imageBase64.length())));
-                }
+                Log.d("Ranking", "圖片雜湊: " + imageHash);
 
                 double totalValue = 0;
                 try {
@@ -103,8 +135,8 @@ public class RankingActivity extends AppCompatActivity {
                     Log.e("Ranking", "無法解析 total: " + total);
                 }
 
-                // 🔹 解碼 Base64 為 Bitmap
-                Bitmap bitmap = decodeBase64Image(imageBase64, name);
+                // 🔹 從本機快取解碼圖片
+                Bitmap bitmap = decodeCachedImage(new File(avatarCache, cacheName(imageHash)), imageHash, name);
                 list.add(new UserData(name, totalValue, bitmap));
             }
 
@@ -141,70 +173,174 @@ public class RankingActivity extends AppCompatActivity {
     }
 
     /**
-     * 🔹 使用 InputStream 讀取大型回應資料
+     * 🔹 套用 GET_RANKING_SINCE 的回應（full 為 true 時取代整個列表），回傳套用後的完整排行榜
      */
-    private String readLargeResponse(DataInputStream in) throws IOException {
-        Log.d("Ranking", "開始讀取伺服器回應...");
+    private JSONArray applyDelta(JSONObject delta) throws JSONException {
+        synchronized (cachedRanking) {
+            if (delta.optBoolean("full")) {
+                cachedRanking.clear();
+            }
+            JSONArray added = delta.optJSONArray("added");
+            JSONArray changed = delta.optJSONArray("changed");
+            JSONArray removed = delta.optJSONArray("removed");
+            for (JSONArray rows : new JSONArray[]{added, changed}) {
+                if (rows == null) continue;
+                for (int i = 0; i < rows.length(); i++) {
+                    JSONObject row = rows.getJSONObject(i);
+                    cachedRanking.put(row.optString("name"), row);
+                }
+            }
+            if (removed != null) {
+                for (int i = 0; i < removed.length(); i++) {
+                    cachedRanking.remove(removed.getString(i));
+                }
+            }
+            rankingVersion = delta.getLong("version");
+            Log.d("Ranking", "套用變動：新增 " + (added != null ? added.length() : 0) +
+                    "，修改 " + (changed != null ? changed.length() : 0) +
+                    "，移除 " + (removed != null ? removed.length() : 0) + "，版本 " + rankingVersion);
+            return new JSONArray(cachedRanking.values());
+        }
+    }
+
+    /**
+     * 🔹 把本機快取中沒有的圖片以 GET_IMAGE 一次全部送出（不等待回應），再依序讀回存檔
+     */
+    private void fetchMissingImages(DataOutputStream out, DataInputStream in, JSONArray arr, File avatarCache) throws IOException {
+        Set<String> missing = new LinkedHashSet<>();
+        for (int i = 0; i < arr.length(); i++) {
+            String hash = arr.getJSONObject(i).optString("imageHash", "");
+            if (!hash.isEmpty() && !new File(avatarCache, cacheName(hash)).exists()) {
+                missing.add(hash);
+            }
+        }
+        Log.d("Ranking", "需要下載的圖片: " + missing.size() + " 張");
+        if (missing.isEmpty()) return;
+
+        int requestId = 2;
+        for (String hash : missing) {
+            writeRequest(out, requestId++, "GET_IMAGE " + hash + " " + AVATAR_SIZE);
+        }
+        out.flush();
+
+        for (String hash : missing) {
+            File part = new File(avatarCache, cacheName(hash) + ".part");
+            try (OutputStream file = new FileOutputStream(part)) {
+                readLargeResponse(in, file);
+            } catch (ServerErrorException e) {
+                part.delete();
+                // 伺服器回覆錯誤訊框時連線仍可繼續使用
+                Log.w("Ranking", "⚠️ 無法取得圖片 " + hash + ": " + e.getMessage());
+                continue;
+            } catch (IOException e) {
+                part.delete();
+                throw e;
+            }
+            part.renameTo(new File(avatarCache, cacheName(hash)));
+        }
+    }
+
+    private static String cacheName(String hash) {
+        return hash + "-" + AVATAR_SIZE;
+    }
 
-        // 先讀取資料長度（DataInputStream.writeUTF 會先寫入長度）
-        int length = in.readUnsignedShort();
-        Log.d("Ranking", "資料長度標記: " + length + " bytes");
+    /**
+     * 🔹 送出協定 v2 交握，要求持續連線以便在同一連線上取得排行榜與圖片，並表示可接收 deflate 壓縮的回應
+     */
+    private void writeHandshake(DataOutputStream out) throws IOException {
+        out.write(PROTOCOL_MAGIC);
+        out.writeByte(PROTOCOL_VERSION);
+        out.writeInt(CAP_KEEP_ALIVE | CAP_DEFLATE);
+    }
 
-        // 使用 ByteArrayOutputStream 收集資料
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    /**
+     * 🔹 讀取伺服器的交握回覆，回傳伺服器接受的功能旗標
+     */
+    private int readHandshake(DataInputStream in) throws IOException {
+        byte[] magic = new byte[PROTOCOL_MAGIC.length];
+        in.readFully(magic);
+        int version = in.readUnsignedByte();
+        int accepted = in.readInt();
+        if (magic[0] != PROTOCOL_MAGIC[0] || version != PROTOCOL_VERSION) {
+            throw new IOException("伺服器不支援協定 v2");
+        }
+        return accepted;
+    }
+
+    /**
+     * 🔹 送出單一請求訊框
+     */
+    private void writeRequest(DataOutputStream out, int requestId, String command) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        new DataOutputStream(payload).writeUTF(command);
+
+        out.writeByte(TYPE_REQUEST);
+        out.writeByte(0);
+        out.writeInt(requestId);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+    }
+
+    /**
+     * 🔹 讀取協定 v2 的一個回應並寫入 sink：伺服器將大型資料切成多個訊框，最後一個帶有結束旗標；
+     *    帶有壓縮旗標的回應邊收邊解壓
+     */
+    private void readLargeResponse(DataInputStream in, OutputStream sink) throws IOException {
+        Log.d("Ranking", "開始讀取伺服器回應...");
+
+        InflaterOutputStream inflater = null;
+        ByteArrayOutputStream error = new ByteArrayOutputStream();
         byte[] buffer = new byte[8192]; // 8KB 緩衝區
-        int totalRead = 0;
-        int bytesRead;
+        long received = 0;
+        boolean end = false;
 
-        // 讀取指定長度的資料
-        while (totalRead < length) {
-            int toRead = Math.min(buffer.length, length - totalRead);
-            bytesRead = in.read(buffer, 0, toRead);
+        while (!end) {
+            byte type = in.readByte();
+            byte flags = in.readByte();
+            in.readInt(); // requestId
+            int length = in.readInt();
 
-            if (bytesRead == -1) {
-                throw new IOException("連接中斷，已讀取 " + totalRead + "/" + length + " bytes");
+            if (inflater == null && type != TYPE_ERROR && (flags & FLAG_COMPRESSED) != 0) {
+                inflater = new InflaterOutputStream(sink);
+            }
+            OutputStream target = type == TYPE_ERROR ? error : inflater != null ? inflater : sink;
+            int remaining = length;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new IOException("連接中斷，已讀取 " + received + " bytes");
+                }
+                target.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+                received += bytesRead;
             }
 
-            baos.write(buffer, 0, bytesRead);
-            totalRead += bytesRead;
-
-            // 顯示進度
-            if (totalRead % (50 * 1024) == 0 || totalRead == length) {
-                Log.d("Ranking", "讀取進度: " + (totalRead * 100 / length) + "% (" + (totalRead / 1024) + " KB / " + (length / 1024) + " KB)");
+            if (type == TYPE_ERROR) {
+                throw new ServerErrorException(error.toString("UTF-8"));
             }
+            end = (flags & FLAG_END) != 0;
+            Log.d("Ranking", "讀取進度: " + (received / 1024) + " KB");
         }
 
-        String result = baos.toString("UTF-8");
-        Log.d("Ranking", "讀取完成！總計: " + totalRead + " bytes");
-
-        return result;
+        if (inflater != null) {
+            inflater.finish();
+        }
+        Log.d("Ranking", "讀取完成！總計: " + received + " bytes" + (inflater != null ? "（壓縮）" : ""));
     }
 
     /**
-     * 🔹 解碼 Base64 圖片
+     * 🔹 解碼本機快取的圖片檔
      */
-    private Bitmap decodeBase64Image(String imageBase64, String userName) {
-        if (imageBase64.isEmpty()) {
+    private Bitmap decodeCachedImage(File file, String imageHash, String userName) {
+        if (imageHash.isEmpty() || !file.exists()) {
             Log.w("Ranking", "⚠️ 無圖片資料: " + userName);
             return null;
         }
 
         try {
-            // 🔹 移除可能的前綴 (data:image/...)
-            if (imageBase64.contains(",")) {
-                imageBase64 = imageBase64.split(",")[1];
-                Log.d("Ranking", "移除前綴後長度: " + imageBase64.length());
-            }
-
-            // 🔹 移除所有空白字元和換行
-            imageBase64 = imageBase64.replaceAll("\\s+", "");
-            Log.d("Ranking", "移除空白後長度: " + imageBase64.length());
+            Log.d("Ranking", "圖片檔大小: " + file.length() + " bytes (" + (file.length() / 1024) + " KB)");
 
-            // 🔹 解碼
-            byte[] decodedBytes = Base64.decode(imageBase64, Base64.DEFAULT);
-            Log.d("Ranking", "解碼後 byte 陣列大小: " + decodedBytes.length + " bytes (" + (decodedBytes.length / 1024) + " KB)");
-
-            Bitmap bitmap = BitmapFactory.decodeByteArray(decodedBytes, 0, decodedBytes.length);
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
 
             if (bitmap != null) {
                 Log.d("Ranking", "✅ 圖片解碼成功! 使用者: " + userName + ", 尺寸: " + bitmap.getWidth() + "x" + bitmap.getHeight());
@@ -214,9 +350,6 @@ public class RankingActivity extends AppCompatActivity {
 
             return bitmap;
 
-        } catch (IllegalArgumentException e) {
-            Log.e("Ranking", "❌ Base64 解碼失敗 (" + userName + "): " + e.getMessage());
-            e.printStackTrace();
         } catch (Exception e) {
             Log.e("Ranking", "❌ 圖片處理失敗 (" + userName + "): " + e.getMessage());
             e.printStackTrace();
@@ -247,7 +380,7 @@ public class RankingActivity extends AppCompatActivity {
 
             // 圖片 🔹
             ImageView imgView = new ImageView(this);
-            TableRow.LayoutParams params = new TableRow.LayoutParams(150, 150);
+            TableRow.LayoutParams params = new TableRow.LayoutParams(AVATAR_SIZE, AVATAR_SIZE);
             params.setMargins(8, 8, 8, 8);
             imgView.setLayoutParams(params);
             imgView.setScaleType(ImageView.ScaleType.CENTER_CROP);
@@ -294,6 +427,13 @@ public class RankingActivity extends AppCompatActivity {
         tableRanking.addView(tv);
     }
 
+    // 🔹 伺服器回覆錯誤訊框（連線本身仍正常）
+    static class ServerErrorException extends IOException {
+        ServerErrorException(String message) {
+            super("伺服器錯誤: " + message);
+        }
+    }
+
     // 資料類別 🔹 加入 Bitmap
     static class UserData {
         String name;
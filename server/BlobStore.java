@@ -0,0 +1,116 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * 以 SHA-256 為鍵的內容定址圖片儲存：內容相同的圖片只會存一份，
+ * 同一個雜湊值對應的內容永遠不變，因此用戶端可以無限期快取。
+ *
+ * 檔案配置為 dir/ab/abcdef...（以雜湊前兩碼分目錄），寫入一律先寫暫存檔再原子改名。
+ */
+public class BlobStore {
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Path dir;
+
+    public BlobStore(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+    }
+
+    /**
+     * 在儲存目錄中建立暫存檔（與最終位置在同一個檔案系統，才能原子改名）
+     */
+    public Path tempFile() throws IOException {
+        return Files.createTempFile(dir, "upload-", ".part");
+    }
+
+    /**
+     * 將已寫好的檔案納入儲存並回傳其雜湊；已有相同內容時直接刪除來源檔
+     */
+    public String put(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        String hash = hex(digest.digest());
+
+        Path target = path(hash);
+        if (Files.exists(target)) {
+            Files.delete(file);
+        } else {
+            Files.createDirectories(target.getParent());
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return hash;
+    }
+
+    /**
+     * 將 Base64（可含 data:image/...;base64, 前綴）圖片納入儲存並回傳其雜湊，空字串回傳空字串
+     */
+    public String putBase64(String base64) throws IOException {
+        int comma = base64.indexOf(',');
+        if (comma >= 0) base64 = base64.substring(comma + 1);
+        base64 = base64.replaceAll("\\s+", "");
+        if (base64.isEmpty()) return "";
+
+        byte[] bytes = Base64.getDecoder().decode(base64);
+        String hash = hex(sha256().digest(bytes));
+        Path target = path(hash);
+        if (!Files.exists(target)) {
+            Path tmp = tempFile();
+            Files.write(tmp, bytes);
+            Files.createDirectories(target.getParent());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return hash;
+    }
+
+    /**
+     * 取得雜湊對應的檔案；雜湊格式錯誤或不存在時回傳 null
+     */
+    public Path get(String hash) {
+        if (!isHash(hash)) return null;
+        Path p = path(hash);
+        return Files.exists(p) ? p : null;
+    }
+
+    /**
+     * 由原圖衍生的檔案（例如縮圖）位置，與原圖放在同一目錄；雜湊格式錯誤時回傳 null
+     */
+    public Path derived(String hash, String suffix) {
+        if (!isHash(hash)) return null;
+        return path(hash).resolveSibling(hash + "-" + suffix);
+    }
+
+    public String readBase64(String hash) throws IOException {
+        Path p = get(hash);
+        return p == null ? "" : Base64.getEncoder().encodeToString(Files.readAllBytes(p));
+    }
+
+    private Path path(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static boolean isHash(String s) {
+        return s != null && s.matches("[0-9a-f]{64}");
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
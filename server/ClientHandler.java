@@ -0,0 +1,367 @@
+import java.net.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import org.json.JSONObject;
+
+class ClientHandler implements Runnable {
+    private Socket socket;
+    private String messageout;
+    private static final int BUFFER_SIZE = 65536;
+    private static final long MAX_FILE_SIZE = 50 * 1024 * 1024;
+    // 每次 transferFrom 最多搬移的位元組數（同時作為進度顯示間隔）
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+    // GET_RANK_WINDOW 前後最多各取幾名
+    private static final int MAX_RANK_WINDOW = 100;
+    // GET_RANKING_PAGE 每頁最多筆數
+    private static final int MAX_PAGE_SIZE = 500;
+    // 轉送上游內容用的緩衝區，每個執行緒一份重複使用
+    private static final ThreadLocal<byte[]> RELAY_BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    // 已知的命令名稱（統計用）
+    private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList(
+        "GET_RANKING", "GET_RANKING_SINCE", "GET_MY_RANK", "GET_RANK_WINDOW", "GET_RANKING_PAGE",
+        "GET_RANKING_WITH_IMAGE", "GET_IMAGE", "UPLOAD_IMAGE", "UPLOAD_DATA", "STATS"));
+
+    public ClientHandler(Socket socket, String messageout) {
+        this.socket = socket;
+        this.messageout = messageout;
+    }
+
+    @Override
+    public void run() {
+        DataInputStream in = null;
+        DataOutputStream out = null;
+        Metrics.connectionOpened();
+        
+        try {
+            // 設定 socket 選項以優化大檔案傳輸
+            socket.setSendBufferSize(BUFFER_SIZE);
+            socket.setReceiveBufferSize(BUFFER_SIZE);
+            socket.setTcpNoDelay(false); // 啟用 Nagle 演算法以提高效率
+            
+            in = new DataInputStream(new BufferedInputStream(new Metrics.CountingInputStream(socket.getInputStream()), BUFFER_SIZE));
+            out = new DataOutputStream(new BufferedOutputStream(new Metrics.CountingOutputStream(socket.getOutputStream()), BUFFER_SIZE));
+
+            // 依連線開頭判斷協定版本（v1 writeUTF 或 v2 訊框）並處理命令
+            Protocol.serve(in, out, socket);
+
+        } catch (IOException e) {
+            System.out.println("Client disconnected: " + e.getMessage());
+        } finally {
+            try {
+                if (in != null) in.close();
+                if (out != null) out.close();
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            Metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * 處理單一請求並記錄該命令的耗時（阻塞式連線與 NIO 前端、v1 與 v2 協定共用）
+     */
+    static void handleCommand(String command, DataInputStream in, Protocol.Responder res) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            dispatch(command, in, res);
+            ok = true;
+        } finally {
+            Metrics.record(Metrics.COMMANDS, commandName(command), System.nanoTime() - start, ok);
+        }
+    }
+
+    /**
+     * 統計用的命令名稱：去掉參數，未知的命令合併計算
+     */
+    private static String commandName(String command) {
+        int space = command.indexOf(' ');
+        String name = space < 0 ? command : command.substring(0, space);
+        return COMMANDS.contains(name) ? name : "UNKNOWN";
+    }
+
+    /**
+     * 依命令類型處理單一請求
+     */
+    private static void dispatch(String command, DataInputStream in, Protocol.Responder res) throws IOException {
+        // ✅ 排行榜請求（不含圖片）
+        if (command.equals("GET_RANKING")) {
+            Server.revalidateRanking(res);
+            // 內容未變動時直接送出快取的（壓縮）回應
+            long version = Server.rankingVersion();
+            if (!res.replay(command, version)) {
+                String allData = Server.readAllData();
+                try (OutputStream body = res.body(command, version)) {
+                    body.write(("=== 所有上傳資料 ===\n" + allData).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        // 🔹 排行榜差異：GET_RANKING_SINCE <version>，只回傳該版本之後的變動
+        else if (command.startsWith("GET_RANKING_SINCE ")) {
+            try {
+                long since = Long.parseLong(command.substring("GET_RANKING_SINCE ".length()).trim());
+                Server.revalidateRanking(res);
+                res.text(Server.readRankingSince(since));
+            } catch (NumberFormatException e) {
+                res.text("❌ 無效的版本號: " + command);
+            }
+        }
+
+        // 🔹 名次查詢：GET_MY_RANK <name>（姓名可包含空白）
+        else if (command.startsWith("GET_MY_RANK ")) {
+            String name = command.substring("GET_MY_RANK ".length());
+            Server.revalidateRanking(res);
+            String rank = Server.readRank(name);
+            res.text(rank != null ? rank : "❌ 找不到使用者: " + name);
+        }
+
+        // 🔹 名次附近的使用者：GET_RANK_WINDOW <name> <k>（最後一個參數為 k）
+        else if (command.startsWith("GET_RANK_WINDOW ")) {
+            String args = command.substring("GET_RANK_WINDOW ".length());
+            int space = args.lastIndexOf(' ');
+            try {
+                if (space < 0) throw new NumberFormatException(args);
+                String name = args.substring(0, space);
+                int k = Math.min(Integer.parseInt(args.substring(space + 1).trim()), MAX_RANK_WINDOW);
+                Server.revalidateRanking(res);
+                String window = k < 0 ? null : Server.readRankWindow(name, k);
+                res.text(window != null ? window : "❌ 找不到使用者: " + name);
+            } catch (NumberFormatException e) {
+                res.text("❌ 用法: GET_RANK_WINDOW <name> <k>");
+            }
+        }
+
+        // 🔹 分頁排行榜：GET_RANKING_PAGE <offset> <limit> [withImages]，依名次排序
+        else if (command.startsWith("GET_RANKING_PAGE ")) {
+            String[] parts = command.trim().split("\\s+");
+            try {
+                int offset = Integer.parseInt(parts[1]);
+                int limit = Math.min(Integer.parseInt(parts[2]), MAX_PAGE_SIZE);
+                boolean withImages = parts.length > 3 &&
+                    (parts[3].equalsIgnoreCase("withImages") || parts[3].equalsIgnoreCase("true") || parts[3].equals("1"));
+                if (offset < 0 || limit < 0) {
+                    res.text("❌ offset 與 limit 不可為負數: " + command);
+                } else {
+                    Server.revalidateRanking(res);
+                    res.text(Server.readRankingPage(offset, limit, withImages));
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                res.text("❌ 用法: GET_RANKING_PAGE <offset> <limit> [withImages]");
+            }
+        }
+
+        // 🔹 新增：排行榜請求（含圖片）
+        else if (command.equals("GET_RANKING_WITH_IMAGE")) {
+            System.out.println("處理含圖片的排行榜請求...");
+            if (res.streaming() && Server.RANKING_PASS_THROUGH && Server.SHEETS_SINK && relayRankingWithImages(res)) {
+                // 🔹 v2 轉送模式：上游內容已直接轉送給用戶端
+            } else if (res.streaming()) {
+                Server.revalidateRanking(res);
+                // v2：逐筆序列化並分訊框送出，不受 64KB 限制；內容未變動時直接送出快取的壓縮結果
+                long version = Server.rankingVersion();
+                if (!Server.rankingImagesLoaded()) {
+                    try (OutputStream body = res.body()) {
+                        Server.writeAllDataWithImages(body);
+                    }
+                } else if (!res.replay(command, version)) {
+                    try (OutputStream body = res.body(command, version)) {
+                        Server.writeAllDataWithImages(body);
+                    }
+                }
+            } else {
+                Server.revalidateRanking(res);
+                String allData = Server.readAllDataWithImages();
+
+                // 檢查資料是否有效
+                if (allData.equals("[]") || allData.isEmpty()) {
+                    res.text("[]");
+                } else {
+                    res.text(allData);
+                }
+            }
+            System.out.println("已傳送排行榜資料（含圖片）");
+        }
+
+        // 🔹 依雜湊取得圖片原始位元組（內容不可變，用戶端可永久快取）
+        //    GET_IMAGE <hash> [size]：指定 size 時回傳不小於該尺寸的縮圖
+        else if (command.startsWith("GET_IMAGE ")) {
+            String[] parts = command.trim().split("\\s+");
+            Path image = null;
+            // 沒有雜湊或尺寸不是數字時回覆找不到圖片
+            if (parts.length >= 2) {
+                Integer size = 0;
+                if (parts.length > 2) {
+                    try {
+                        size = Integer.parseInt(parts[2]);
+                    } catch (NumberFormatException e) {
+                        size = null;
+                    }
+                }
+                if (size != null) image = Server.image(parts[1], size);
+            }
+            res.blob(image);
+        }
+
+        // 🔹 伺服器統計（各命令與上游呼叫的延遲分佈、連線數、傳輸量）
+        else if (command.equals("STATS")) {
+            res.text(Metrics.toJson());
+        }
+
+        // ✅ 大型圖片上傳處理（使用分塊傳輸）
+        else if (command.equals("UPLOAD_IMAGE")) {
+            handleImageUpload(in, res);
+        }
+
+        // ✅ 一般資料上傳
+        else if (command.equals("UPLOAD_DATA")) {
+            String data = in.readUTF();
+            String[] parts = data.split(",");
+            String name = parts.length > 0 ? parts[0] : "未知";
+            String total = parts.length > 1 ? parts[1] : "N/A";
+
+            System.out.println("[" + new Date() + "] 收到使用者: " + name + "，碳排放量: " + total + " g CO2");
+
+            long seq = Server.saveData(name, total);
+
+            if (Server.UPLOAD_FAST_ACK) {
+                // 已寫入本機日誌，轉送 Google Sheets 在背景進行，只回覆狀態與序號
+                JSONObject ack = new JSONObject();
+                ack.put("status", seq < 0 ? "error" : "ok");
+                ack.put("seq", seq);
+                ack.put("pendingUpstream", Server.pendingUpstream());
+                res.text(ack.toString());
+            } else {
+                Server.revalidateRanking(res);
+                String allData = Server.readAllData();
+                res.text("伺服器已收到資料！\n\n=== 所有上傳資料 ===\n" + allData);
+            }
+        }
+
+        else {
+            res.text("❌ 未知的命令: " + command);
+        }
+    }
+
+    /**
+     * 以固定大小的緩衝區把上游含圖片排行榜的原始內容直接轉送給用戶端，記憶體用量與內容大小無關；
+     * 開啟檢查時邊轉送邊檢查 JSON 格式，格式錯誤或上游中斷則以錯誤結束回應。
+     * 無法取得上游回應時回傳 false（尚未送出任何內容，改由本機快取回應）
+     */
+    private static boolean relayRankingWithImages(Protocol.Responder res) throws IOException {
+        InputStream upstream;
+        try {
+            upstream = UpstreamClient.await(Server.upstream().open(true));
+        } catch (IOException e) {
+            System.out.println("無法轉送上游排行榜，改用本機快取: " + e.getMessage());
+            return false;
+        }
+        try (InputStream in = upstream) {
+            OutputStream body = res.body();
+            JsonStreamValidator validator = Server.RANKING_PASS_THROUGH_VALIDATE ? new JsonStreamValidator(true) : null;
+            byte[] buffer = RELAY_BUFFER.get();
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    // 先檢查再送出，格式錯誤的片段不會轉送給用戶端
+                    if (validator != null) validator.update(buffer, 0, n);
+                    body.write(buffer, 0, n);
+                }
+                if (validator != null) validator.finish();
+            } catch (IOException e) {
+                System.out.println("轉送上游排行榜失敗: " + e.getMessage());
+                res.error("❌ 轉送排行榜失敗: " + e.getMessage());
+            } finally {
+                // 以錯誤結束時不會再送出內容，但仍要關閉壓縮串流以釋放 Deflater
+                body.close();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 處理大型圖片上傳：直接串流寫入暫存檔，確認大小完整後再依內容雜湊納入 BlobStore（相同圖片只存一份），
+     * 上傳到 Google Sheets 時也從檔案邊讀邊做 Base64，整個檔案不會留在記憶體中
+     */
+    private static void handleImageUpload(DataInputStream in, Protocol.Responder res) throws IOException {
+        Path tmp = null;
+        try {
+            // 讀取姓名
+            String name = in.readUTF();
+            System.out.println("接收圖片上傳請求，使用者: " + name);
+
+            // 讀取檔案大小
+            long fileSize = in.readLong();
+            System.out.println("檔案大小: " + (fileSize / 1024) + " KB");
+
+            // 檢查檔案大小
+            if (fileSize > MAX_FILE_SIZE || fileSize < 0) {
+                res.text("❌ 檔案過大，最大允許 " + (MAX_FILE_SIZE / 1024 / 1024) + " MB");
+                return;
+            }
+
+            System.out.println("開始接收檔案資料...");
+            long startTime = System.currentTimeMillis();
+
+            // 🔹 socket → 暫存檔，只經過固定大小的傳輸緩衝區
+            tmp = Server.blobs().tempFile();
+            ReadableByteChannel source = Channels.newChannel(in);
+            try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                long totalRead = 0;
+                while (totalRead < fileSize) {
+                    long n = file.transferFrom(source, totalRead, Math.min(TRANSFER_CHUNK, fileSize - totalRead));
+                    if (n <= 0) {
+                        throw new IOException("連接中斷，已接收 " + totalRead + " / " + fileSize + " bytes");
+                    }
+                    totalRead += n;
+
+                    // 顯示進度
+                    int progress = (int) ((totalRead * 100) / fileSize);
+                    System.out.println("接收進度: " + progress + "% (" + (totalRead / 1024) + " KB / " + (fileSize / 1024) + " KB)");
+                }
+            }
+
+            long endTime = System.currentTimeMillis();
+            double seconds = (endTime - startTime) / 1000.0;
+            double speed = (fileSize / 1024.0 / 1024.0) / seconds;
+            System.out.println("接收完成！耗時: " + String.format("%.2f", seconds) + " 秒，速度: " + String.format("%.2f", speed) + " MB/s");
+
+            // 大小確認無誤後才依內容雜湊以原子操作納入儲存，已有相同圖片時直接沿用
+            String hash = Server.blobs().put(tmp);
+            tmp = null;
+            Path image = Server.blobs().get(hash);
+            System.out.println("圖片雜湊: " + hash);
+            // 本機快取立即改用新圖片，不必等 Google Sheets 上傳完成
+            Server.imageUploaded(name, hash);
+
+            if (!Server.SHEETS_SINK) {
+                res.text("✅ 圖片已儲存到伺服器");
+                System.out.println("圖片已儲存（未使用 Google Sheets）: " + name);
+                return;
+            }
+
+            // 由共用的上游用戶端送出（使用圖片專用的名額），圖片邊讀檔邊做 Base64
+            int responseCode = UpstreamClient.await(Server.upstream().postImage(name, image));
+
+            if (responseCode == 200) {
+                res.text("✅ 圖片已成功上傳到 Google Sheet");
+                System.out.println("成功上傳圖片到 Google Sheet: " + name);
+            } else {
+                res.text("❌ 上傳失敗，狀態碼：" + responseCode);
+                System.out.println("上傳失敗：" + responseCode);
+            }
+
+        } catch (Exception e) {
+            res.text("❌ 上傳圖片時發生錯誤：" + e.getMessage());
+            System.out.println("Error uploading image: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            // 未完成的上傳不留下暫存檔
+            if (tmp != null) Files.deleteIfExists(tmp);
+        }
+    }
+}
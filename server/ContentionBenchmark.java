@@ -0,0 +1,106 @@
+/*
+ 鎖競爭效能測試：以不同執行緒數量同時呼叫 saveData / readAllData，觀察吞吐量是否隨執行緒增加
+ javac -cp ".;lib/json-20231013.jar" ContentionBenchmark.java
+ java -cp ".;lib/json-20231013.jar" ContentionBenchmark 5 1000
+*/
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class ContentionBenchmark {
+    // 讀寫比例：每 10 次操作中 1 次上傳、9 次讀取排行榜
+    private static final int WRITE_EVERY = 10;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        Path dataFile = Files.createTempFile("contention-bench", ".txt");
+        DataStore store = DataStore.open(dataFile, false);
+        for (int i = 0; i < users; i++) {
+            store.append("user_" + i, String.valueOf(i));
+        }
+        // 模擬每次都要等 2 秒的上游圖片讀取，確認它不會拖慢一般讀寫
+        BlobStore blobs = new BlobStore(Files.createTempDirectory("contention-bench-blobs"));
+        RankingCache cache = new RankingCache(store, blobs, () -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "[]";
+        });
+        Server.useStorage(store, blobs, cache);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread slowImages = new Thread(() -> {
+            while (running.get()) {
+                try {
+                    cache.refresh();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "slow-image-refresh");
+        slowImages.setDaemon(true);
+        slowImages.start();
+
+        System.out.println("使用者 " + users + " 人，每組測試 " + seconds + " 秒，背景持續有 2 秒的圖片讀取");
+        System.out.println(String.format("%8s %14s %14s", "threads", "ops/sec", "vs 1 thread"));
+
+        double baseline = 0;
+        for (int threads : THREAD_COUNTS) {
+            double opsPerSec = run(threads, seconds, users);
+            if (baseline == 0) baseline = opsPerSec;
+            System.out.println(String.format("%8d %14.0f %13.2fx", threads, opsPerSec, opsPerSec / baseline));
+        }
+
+        running.set(false);
+        store.close();
+        Files.deleteIfExists(dataFile);
+        System.exit(0);
+    }
+
+    private static double run(int threads, int seconds, int users) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long n = 0;
+                while (!stop.get()) {
+                    if (n % WRITE_EVERY == 0) {
+                        Server.saveData("user_" + random.nextInt(users), String.valueOf(random.nextInt(100000)));
+                    } else {
+                        Server.readAllData();
+                    }
+                    n++;
+                }
+                ops.add(n);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        return ops.sum() / elapsed;
+    }
+}
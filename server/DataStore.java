@@ -0,0 +1,242 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * 本機 append-only 資料儲存：每筆上傳都附加到日誌檔，記憶體索引於啟動時由日誌重建。
+ *
+ * 日誌每一行格式為「CRC32(8 位十六進位) + 空白 + JSON」，JSON 內容為 name / total / ts / seq，
+ * 使用者有圖片時另有 image（BlobStore 中的雜湊）；seq 為遞增的序號（舊版日誌沒有 seq，載入時依行序補上）。
+ * 啟動時遇到校驗失敗或不完整的尾端紀錄（例如寫到一半當機）會截斷該處之後的內容。
+ * append 不持有全域鎖：日誌以 APPEND 模式開啟，每筆紀錄一次寫入；
+ * 同一使用者的多筆 append 由呼叫端依序進行（見 Server 的分段鎖）。
+ */
+public class DataStore {
+
+    /**
+     * 單一使用者的最新紀錄
+     */
+    public static final class Record {
+        public final String name;
+        public final String total;
+        public final long timestamp;
+        public final long seq;
+        // 圖片在 BlobStore 中的雜湊，沒有圖片時為空字串
+        public final String imageHash;
+
+        Record(String name, String total, long timestamp, long seq, String imageHash) {
+            this.name = name;
+            this.total = total;
+            this.timestamp = timestamp;
+            this.seq = seq;
+            this.imageHash = imageHash;
+        }
+    }
+
+    private final Path path;
+    private final boolean fsync;
+    private final FileChannel channel;
+    private final Map<String, Record> index = new ConcurrentHashMap<>();
+    private final LongAdder logRecords = new LongAdder();
+    // 已分配序號但 append 尚未完成的紀錄，與 lastSeq 一起以 appending 同步
+    private final NavigableSet<Long> appending = new TreeSet<>();
+    private long lastSeq;
+
+    private DataStore(Path path, boolean fsync) throws IOException {
+        this.path = path;
+        this.fsync = fsync;
+        long validLength = replay();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (ch.size() > validLength) {
+                System.out.println("日誌尾端有 " + (ch.size() - validLength) + " bytes 損毀資料，已截斷");
+                ch.truncate(validLength);
+            }
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 開啟（或建立）日誌檔並重建索引；日誌中過期紀錄過多時先壓縮
+     */
+    public static DataStore open(Path path, boolean fsync) throws IOException {
+        DataStore store = new DataStore(path, fsync);
+        long logRecords = store.logRecords.sum();
+        if (logRecords > 1000 && logRecords > store.index.size() * 4L) {
+            store.close();
+            compact(path, store.index.values());
+            store = new DataStore(path, fsync);
+        }
+        System.out.println("本機資料庫已載入: " + path + "，使用者 " + store.index.size() + " 筆，日誌 " + store.logRecords.sum() + " 筆");
+        return store;
+    }
+
+    /**
+     * 附加一筆紀錄並更新索引；同一使用者的呼叫需由呼叫端依序進行
+     */
+    public Record append(String name, String total) throws IOException {
+        return append(name, total, null);
+    }
+
+    /**
+     * 附加一筆紀錄，寫入日誌後、計入 watermark 之前呼叫 onAppended（例如排入上游佇列）
+     */
+    public Record append(String name, String total, Consumer<Record> onAppended) throws IOException {
+        Record previous = index.get(name);
+        return write(name, total, previous != null ? previous.imageHash : "", onAppended);
+    }
+
+    /**
+     * 附加一筆只更新圖片的紀錄（碳排放量沿用最新紀錄）；同一使用者的呼叫需由呼叫端依序進行
+     */
+    public Record appendImage(String name, String imageHash) throws IOException {
+        Record previous = index.get(name);
+        return write(name, previous != null ? previous.total : "", imageHash, null);
+    }
+
+    private Record write(String name, String total, String imageHash, Consumer<Record> onAppended) throws IOException {
+        long seq;
+        synchronized (appending) {
+            seq = ++lastSeq;
+            appending.add(seq);
+        }
+        try {
+            Record record = new Record(name, total, System.currentTimeMillis(), seq, imageHash);
+            // APPEND 模式下單次 write 會完整寫入檔尾，不會與其他執行緒的紀錄交錯
+            channel.write(ByteBuffer.wrap(encode(record)));
+            if (fsync) {
+                channel.force(false);
+            }
+            index.put(name, record);
+            logRecords.increment();
+            if (onAppended != null) onAppended.accept(record);
+            return record;
+        } finally {
+            synchronized (appending) {
+                appending.remove(seq);
+            }
+        }
+    }
+
+    /**
+     * 最後分配的序號
+     */
+    public long lastSeq() {
+        synchronized (appending) {
+            return lastSeq;
+        }
+    }
+
+    /**
+     * 序號不超過此值的紀錄都已完成 append（含 onAppended）
+     */
+    public long watermark() {
+        synchronized (appending) {
+            return appending.isEmpty() ? lastSeq : appending.first() - 1;
+        }
+    }
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    public Collection<Record> records() {
+        return Collections.unmodifiableCollection(index.values());
+    }
+
+    /**
+     * 以與 Apps Script doGet 相同的格式輸出：[{"name": ..., "total": ...}, ...]
+     */
+    public String toJson() {
+        JSONArray arr = new JSONArray();
+        for (Record r : index.values()) {
+            JSONObject obj = new JSONObject();
+            obj.put("name", r.name);
+            obj.put("total", r.total);
+            arr.put(obj);
+        }
+        return arr.toString();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 讀取日誌重建索引，回傳最後一筆有效紀錄結束的位置
+     */
+    private long replay() throws IOException {
+        if (!Files.exists(path)) return 0;
+
+        long validLength = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 65536)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                Record record = decode(line.toByteArray(), lastSeq + 1);
+                if (record == null) break;
+                lastSeq = Math.max(lastSeq, record.seq);
+                index.put(record.name, record);
+                logRecords.increment();
+                validLength += line.size() + 1;
+                line.reset();
+            }
+        }
+        return validLength;
+    }
+
+    private static void compact(Path path, Collection<Record> live) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 65536)) {
+            for (Record r : live) {
+                out.write(encode(r));
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("日誌已壓縮為 " + live.size() + " 筆");
+    }
+
+    private static byte[] encode(Record r) {
+        JSONObject obj = new JSONObject();
+        obj.put("name", r.name);
+        obj.put("total", r.total);
+        obj.put("ts", r.timestamp);
+        obj.put("seq", r.seq);
+        if (!r.imageHash.isEmpty()) obj.put("image", r.imageHash);
+        String json = obj.toString();
+        String line = String.format("%08x ", checksum(json.getBytes(StandardCharsets.UTF_8))) + json + "\n";
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Record decode(byte[] line, long defaultSeq) {
+        if (line.length < 10 || line[8] != ' ') return null;
+        try {
+            long expected = Long.parseLong(new String(line, 0, 8, StandardCharsets.US_ASCII), 16);
+            byte[] payload = Arrays.copyOfRange(line, 9, line.length);
+            if (checksum(payload) != expected) return null;
+            JSONObject obj = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+            return new Record(obj.getString("name"), obj.getString("total"), obj.getLong("ts"), obj.optLong("seq", defaultSeq),
+                obj.optString("image", ""));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+}
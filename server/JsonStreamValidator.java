@@ -0,0 +1,280 @@
+import java.io.IOException;
+
+/**
+ * 邊傳送邊檢查 JSON 結構的驗證器：逐 byte 讀入，只保留巢狀層級與目前的語法狀態，
+ * 記憶體用量固定、與內容大小無關（不建立任何物件或字串）。
+ *
+ * 檢查括號配對、逗號與冒號位置、字串跳脫字元，以及 true / false / null / 數字的格式；
+ * 不檢查 UTF-8 編碼與物件鍵是否重複。
+ */
+public class JsonStreamValidator {
+    private static final int MAX_DEPTH = 256;
+    // 數字或字面值的最大長度
+    private static final int MAX_SCALAR = 64;
+
+    // 期待的下一個語法單位
+    private static final int VALUE = 0;
+    private static final int VALUE_OR_END = 1;     // '[' 之後
+    private static final int KEY_OR_END = 2;       // '{' 之後
+    private static final int KEY = 3;              // 物件中的 ',' 之後
+    private static final int COLON = 4;
+    private static final int COMMA_OR_END = 5;
+    private static final int DONE = 6;
+
+    // 數字或字面值目前的語法位置（NO_SCALAR 表示不在數字或字面值中）
+    private static final int NO_SCALAR = -1;
+    private static final int LITERAL = 0;          // true / false / null，literalMatched 為已比對的長度
+    private static final int MINUS = 1;            // '-' 之後，需要數字
+    private static final int ZERO = 2;             // 開頭的 0 之後，只能接小數點或指數
+    private static final int INTEGER = 3;
+    private static final int DOT = 4;              // '.' 之後，需要數字
+    private static final int FRACTION = 5;
+    private static final int EXPONENT = 6;         // 'e' / 'E' 之後，需要正負號或數字
+    private static final int EXPONENT_SIGN = 7;    // 指數的正負號之後，需要數字
+    private static final int EXPONENT_DIGITS = 8;
+
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    private final boolean expectArray;
+    // true 表示該層為物件，false 為陣列
+    private final boolean[] objects = new boolean[MAX_DEPTH];
+    private int depth;
+    private int state = VALUE;
+    private long position;
+
+    private boolean inString;
+    private boolean stringIsKey;
+    private boolean escape;
+    private int unicodeDigits;
+
+    private int scalar = NO_SCALAR;
+    private int scalarLength;
+    private byte[] literal;
+    private int literalMatched;
+
+    /**
+     * expectArray 為 true 時最外層必須是陣列（對應 sort.gs doGet 的回應）
+     */
+    public JsonStreamValidator(boolean expectArray) {
+        this.expectArray = expectArray;
+    }
+
+    public void update(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            update(b[i]);
+            position++;
+        }
+    }
+
+    /**
+     * 所有內容都已讀入，確認 JSON 完整結束
+     */
+    public void finish() throws IOException {
+        if (inString) throw error("字串未結束");
+        if (scalar != NO_SCALAR) endScalar();
+        if (state != DONE) throw error("內容不完整");
+    }
+
+    private void update(byte b) throws IOException {
+        if (inString) {
+            string(b);
+            return;
+        }
+        if (scalar != NO_SCALAR) {
+            if (isScalarByte(b)) {
+                scalarByte(b);
+                return;
+            }
+            endScalar();
+        }
+        if (b == ' ' || b == '\t' || b == '\n' || b == '\r') return;
+
+        switch (state) {
+            case VALUE_OR_END:
+                if (b == ']') {
+                    pop(false);
+                    return;
+                }
+                value(b);
+                return;
+            case VALUE:
+                value(b);
+                return;
+            case KEY_OR_END:
+                if (b == '}') {
+                    pop(true);
+                    return;
+                }
+                key(b);
+                return;
+            case KEY:
+                key(b);
+                return;
+            case COLON:
+                if (b != ':') throw error("缺少冒號");
+                state = VALUE;
+                return;
+            case COMMA_OR_END:
+                if (b == ',') {
+                    state = objects[depth - 1] ? KEY : VALUE;
+                } else if (b == '}' || b == ']') {
+                    pop(b == '}');
+                } else {
+                    throw error("缺少逗號");
+                }
+                return;
+            default:
+                throw error("結尾有多餘的內容");
+        }
+    }
+
+    private void value(byte b) throws IOException {
+        if (expectArray && depth == 0 && b != '[') throw error("最外層必須是陣列");
+        if (b == '{' || b == '[') {
+            if (depth == MAX_DEPTH) throw error("巢狀層級過深");
+            objects[depth++] = b == '{';
+            state = b == '{' ? KEY_OR_END : VALUE_OR_END;
+        } else if (b == '"') {
+            inString = true;
+            stringIsKey = false;
+        } else if (isScalarByte(b)) {
+            startScalar(b);
+        } else {
+            throw error("無效的值");
+        }
+    }
+
+    private void key(byte b) throws IOException {
+        if (b != '"') throw error("物件的鍵必須是字串");
+        inString = true;
+        stringIsKey = true;
+    }
+
+    private void string(byte b) throws IOException {
+        if (unicodeDigits > 0) {
+            if (Character.digit(b, 16) < 0) throw error("無效的 \\u 跳脫字元");
+            unicodeDigits--;
+        } else if (escape) {
+            escape = false;
+            if (b == 'u') {
+                unicodeDigits = 4;
+            } else if ("\"\\/bfnrt".indexOf(b) < 0) {
+                throw error("無效的跳脫字元");
+            }
+        } else if (b == '\\') {
+            escape = true;
+        } else if (b == '"') {
+            inString = false;
+            state = stringIsKey ? COLON : afterValue();
+        } else if (b >= 0 && b < 0x20) {
+            throw error("字串中有控制字元");
+        }
+    }
+
+    private void startScalar(byte b) throws IOException {
+        scalarLength = 1;
+        if (b == 't' || b == 'f' || b == 'n') {
+            scalar = LITERAL;
+            literal = b == 't' ? TRUE : b == 'f' ? FALSE : NULL;
+            literalMatched = 1;
+        } else if (b == '-') {
+            scalar = MINUS;
+        } else if (b == '0') {
+            scalar = ZERO;
+        } else if (isDigit(b)) {
+            scalar = INTEGER;
+        } else {
+            throw error("無效的數值或字面值");
+        }
+    }
+
+    /**
+     * 數字依 -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)? 逐 byte 轉換狀態，字面值逐 byte 比對
+     */
+    private void scalarByte(byte b) throws IOException {
+        if (scalarLength == MAX_SCALAR) throw error("數值過長");
+        scalarLength++;
+        boolean digit = isDigit(b);
+        switch (scalar) {
+            case LITERAL:
+                if (literalMatched < literal.length && literal[literalMatched] == b) {
+                    literalMatched++;
+                    return;
+                }
+                break;
+            case MINUS:
+                if (digit) {
+                    scalar = b == '0' ? ZERO : INTEGER;
+                    return;
+                }
+                break;
+            case ZERO:
+            case INTEGER:
+            case FRACTION:
+                if (digit && scalar != ZERO) return;
+                if (b == '.' && scalar != FRACTION) {
+                    scalar = DOT;
+                    return;
+                }
+                if (b == 'e' || b == 'E') {
+                    scalar = EXPONENT;
+                    return;
+                }
+                break;
+            case DOT:
+                if (digit) {
+                    scalar = FRACTION;
+                    return;
+                }
+                break;
+            case EXPONENT:
+            case EXPONENT_SIGN:
+            case EXPONENT_DIGITS:
+                // 正負號只能緊接在 'e' / 'E' 之後
+                if (scalar == EXPONENT && (b == '+' || b == '-')) {
+                    scalar = EXPONENT_SIGN;
+                    return;
+                }
+                if (digit) {
+                    scalar = EXPONENT_DIGITS;
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        throw error("無效的數值或字面值");
+    }
+
+    private void endScalar() throws IOException {
+        boolean complete = scalar == LITERAL ? literalMatched == literal.length
+            : scalar == ZERO || scalar == INTEGER || scalar == FRACTION || scalar == EXPONENT_DIGITS;
+        scalar = NO_SCALAR;
+        if (!complete) throw error("無效的數值或字面值");
+        state = afterValue();
+    }
+
+    private void pop(boolean object) throws IOException {
+        if (depth == 0 || objects[depth - 1] != object) throw error("括號不對稱");
+        depth--;
+        state = afterValue();
+    }
+
+    private int afterValue() {
+        return depth == 0 ? DONE : COMMA_OR_END;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isScalarByte(byte b) {
+        return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || b == '-' || b == '+' || b == '.' || b == 'E';
+    }
+
+    private IOException error(String message) {
+        return new IOException("JSON 格式錯誤（第 " + position + " byte）: " + message);
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.json.JSONObject;
+
+/**
+ * 伺服器統計：每個命令與每種上游呼叫的延遲分佈、錯誤數，以及連線數與傳輸位元組數。
+ * 記錄時只做原子累加（不加鎖），由 STATS 命令或定時寫檔讀取。
+ */
+public class Metrics {
+    public static final String COMMANDS = "commands";
+    public static final String UPSTREAM = "upstream";
+    public static final String WAITS = "waits";
+
+    /**
+     * 無鎖延遲分佈：以微秒為單位，每個 2 的次方區間再細分 16 格（相對誤差約 6%）
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long nanos, boolean ok) {
+            long micros = Math.max(0, nanos / 1000);
+            counts.incrementAndGet(index(micros));
+            count.increment();
+            sumMicros.add(micros);
+            if (!ok) errors.increment();
+            if (micros > maxMicros.get()) maxMicros.accumulateAndGet(micros, Math::max);
+        }
+
+        static int index(long micros) {
+            if (micros < SUB) return (int) micros;
+            int exp = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        /**
+         * 該格涵蓋的最大值（回報百分位數時採用較保守的上界）
+         */
+        static long upperBound(int index) {
+            if (index < SUB) return index;
+            int exp = index / SUB + SUB_BITS - 1;
+            long sub = index % SUB;
+            return ((1L << exp) | (sub << (exp - SUB_BITS))) + (1L << (exp - SUB_BITS)) - 1;
+        }
+
+        /**
+         * 第 q 百分位數（微秒），樣本數少於 minSamples 時回傳 -1
+         */
+        long percentile(double q, long minSamples) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            return total < minSamples ? -1 : percentile(snapshot, total, q);
+        }
+
+        JSONObject toJson() {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            JSONObject obj = new JSONObject();
+            obj.put("count", count.sum());
+            obj.put("errors", errors.sum());
+            obj.put("meanUs", total == 0 ? 0 : sumMicros.sum() / Math.max(1, count.sum()));
+            obj.put("p50Us", percentile(snapshot, total, 0.50));
+            obj.put("p90Us", percentile(snapshot, total, 0.90));
+            obj.put("p99Us", percentile(snapshot, total, 0.99));
+            obj.put("p999Us", percentile(snapshot, total, 0.999));
+            obj.put("maxUs", maxMicros.get());
+            return obj;
+        }
+
+        private static long percentile(long[] snapshot, long total, double q) {
+            if (total == 0) return 0;
+            long target = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= target) return upperBound(i);
+            }
+            return upperBound(snapshot.length - 1);
+        }
+    }
+
+    private static final long startedAt = System.currentTimeMillis();
+    private static final Map<String, Map<String, Histogram>> groups = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final LongAdder connectionsInFlight = new LongAdder();
+    private static final LongAdder connectionsTotal = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * 記錄一次耗時（group 為 COMMANDS / UPSTREAM / WAITS）
+     */
+    public static void record(String group, String name, long nanos, boolean ok) {
+        groups.computeIfAbsent(group, g -> new ConcurrentHashMap<>())
+            .computeIfAbsent(name, n -> new Histogram())
+            .record(nanos, ok);
+    }
+
+    /**
+     * 記錄一次上游呼叫，startNanos 為 System.nanoTime() 的開始時間
+     */
+    public static void upstream(String name, long startNanos, boolean ok) {
+        record(UPSTREAM, name, System.nanoTime() - startNanos, ok);
+    }
+
+    /**
+     * 已記錄耗時的第 q 百分位數（微秒），尚無足夠樣本（少於 minSamples 筆）時回傳 -1
+     */
+    public static long percentileMicros(String group, String name, double q, long minSamples) {
+        Histogram h = groups.getOrDefault(group, Collections.emptyMap()).get(name);
+        return h == null ? -1 : h.percentile(q, minSamples);
+    }
+
+    /**
+     * 登記一個讀取時才計算的數值（例如佇列長度）
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * 累加一次事件次數（例如合併到進行中上游呼叫的請求數）
+     */
+    public static void count(String name) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).increment();
+    }
+
+    public static void connectionOpened() {
+        connectionsInFlight.increment();
+        connectionsTotal.increment();
+    }
+
+    public static void connectionClosed() {
+        connectionsInFlight.decrement();
+    }
+
+    public static void bytesIn(long n) {
+        bytesIn.add(n);
+    }
+
+    public static void bytesOut(long n) {
+        bytesOut.add(n);
+    }
+
+    public static String toJson() {
+        JSONObject obj = new JSONObject();
+        obj.put("time", System.currentTimeMillis());
+        obj.put("uptimeSeconds", (System.currentTimeMillis() - startedAt) / 1000);
+        obj.put("connectionsInFlight", connectionsInFlight.sum());
+        obj.put("connectionsTotal", connectionsTotal.sum());
+        obj.put("bytesIn", bytesIn.sum());
+        obj.put("bytesOut", bytesOut.sum());
+        for (String group : new String[]{COMMANDS, UPSTREAM, WAITS}) {
+            JSONObject g = new JSONObject();
+            groups.getOrDefault(group, Collections.emptyMap()).forEach((name, h) -> g.put(name, h.toJson()));
+            obj.put(group, g);
+        }
+        JSONObject values = new JSONObject();
+        gauges.forEach((name, value) -> values.put(name, value.getAsLong()));
+        obj.put("gauges", values);
+        JSONObject counts = new JSONObject();
+        counters.forEach((name, value) -> counts.put(name, value.sum()));
+        obj.put("counters", counts);
+        return obj.toString();
+    }
+
+    /**
+     * 定時把統計（一行一筆 JSON）附加到檔案
+     */
+    public static void startDump(Path file, long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                Files.write(file, (toJson() + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.out.println("寫入統計檔失敗: " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 計算讀取位元組數的輸入串流
+     */
+    static class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) bytesIn.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) bytesIn.add(n);
+            return n;
+        }
+    }
+
+    /**
+     * 計算寫出位元組數的輸出串流
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesOut.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesOut.add(len);
+        }
+    }
+}
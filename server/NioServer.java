@@ -0,0 +1,429 @@
+/*
+ NIO 前端：以 ServerSocketChannel + Selector 處理所有連線，不再每個連線佔用一個執行緒
+ java -Dserver.mode=nio -Dserver.ioThreads=4 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+*/
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NioServer {
+    private static final int BUFFER_SIZE = 65536;
+    private static final long MAX_FILE_SIZE = 50 * 1024 * 1024;
+    // 每個連線的初始讀取緩衝區，收到 UPLOAD_IMAGE 標頭後才依檔案大小擴充
+    private static final int INITIAL_READ_BUFFER = 8192;
+
+    private final int port;
+    private final IoLoop[] loops;
+    // 命令處理仍會阻塞在 Google Sheets 上，因此交給固定大小的工作執行緒池
+    private final ExecutorService workers;
+    // 所有連線讀取緩衝區超出初始大小的位元組合計與上限；大型上傳一律先完整讀進記憶體，
+    // 連線數乘以單一請求上限（50MB）可能耗盡 heap，超過上限的請求直接回覆錯誤
+    private final AtomicLong buffered = new AtomicLong();
+    private final long maxBufferedBytes;
+
+    public NioServer(int port, int ioThreads, int workerThreads, long maxBufferedBytes) throws IOException {
+        this.port = port;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop();
+        }
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        Metrics.gauge("nioBufferedBytes", buffered::get);
+    }
+
+    public void run() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().setReceiveBufferSize(BUFFER_SIZE);
+            serverChannel.bind(new InetSocketAddress(port));
+
+            for (int i = 0; i < loops.length; i++) {
+                Thread t = new Thread(loops[i], "nio-io-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+
+            System.out.println("NIO server started on IP " +
+                InetAddress.getLocalHost().getHostAddress() +
+                " and port " + port + " (I/O threads: " + loops.length + ")");
+
+            // 由主執行緒接受連線，再以輪詢方式分配給各 I/O 執行緒
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("Connected from client: " + channel.socket().getInetAddress().getHostAddress());
+                channel.configureBlocking(false);
+                channel.socket().setSendBufferSize(BUFFER_SIZE);
+                channel.socket().setReceiveBufferSize(BUFFER_SIZE);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            serverChannel.close();
+            workers.shutdown();
+            System.out.println("Server socket closed.");
+        }
+    }
+
+    /**
+     * 計算目前緩衝區開頭的請求總長度（位元組），資料不足以判斷時回傳 -1。
+     * v2 為交握之後的一個請求訊框（見 Protocol）；
+     * v1 格式與 DataOutputStream.writeUTF 相容：2 位元組長度 + modified UTF-8。
+     */
+    static long requestLength(ByteBuffer buf, boolean v2) throws IOException {
+        int available = buf.position();
+        if (v2) {
+            if (available < Protocol.HEADER_SIZE) return -1;
+            int length = buf.getInt(Protocol.HEADER_SIZE - 4);
+            // 長度無效時只需要標頭，Protocol 會直接回覆錯誤訊框
+            if (length < 0 || length > Protocol.MAX_REQUEST_SIZE) return Protocol.HEADER_SIZE;
+            return (long) Protocol.HEADER_SIZE + length;
+        }
+
+        int commandEnd = utfEnd(buf, 0, available);
+        if (commandEnd < 0) return -1;
+
+        String command = decodeUTF(buf, 0, commandEnd);
+        if (command.equals("UPLOAD_DATA")) {
+            return utfEnd(buf, commandEnd, available);
+        }
+        if (command.equals("UPLOAD_IMAGE")) {
+            int nameEnd = utfEnd(buf, commandEnd, available);
+            if (nameEnd < 0 || available < nameEnd + 8) return -1;
+            long fileSize = buf.getLong(nameEnd);
+            // 檔案過大時只需要標頭，ClientHandler 會直接回覆錯誤
+            if (fileSize < 0 || fileSize > MAX_FILE_SIZE) return nameEnd + 8;
+            return nameEnd + 8 + fileSize;
+        }
+        return commandEnd;
+    }
+
+    private static int utfEnd(ByteBuffer buf, int offset, int available) {
+        if (available < offset + 2) return -1;
+        int end = offset + 2 + (buf.getShort(offset) & 0xFFFF);
+        return available < end ? -1 : end;
+    }
+
+    private static String decodeUTF(ByteBuffer buf, int offset, int end) throws IOException {
+        return DataInputStream.readUTF(new DataInputStream(
+            new ByteArrayInputStream(buf.array(), offset, end - offset)));
+    }
+
+    /**
+     * 單一 Selector 執行緒，負責多個連線的讀寫
+     */
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                    Metrics.connectionOpened();
+                } catch (ClosedChannelException e) {
+                    System.out.println("Client disconnected: " + e.getMessage());
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long idleMillis = Server.KEEP_ALIVE_IDLE_SECONDS * 1000L;
+            while (true) {
+                try {
+                    // 有持續連線時定時醒來檢查閒置逾時
+                    selector.select(idleMillis > 0 ? Math.min(idleMillis, 1000) : 0);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) conn.onReadable(key);
+                            if (key.isValid() && key.isWritable()) conn.onWritable(key);
+                        } catch (IOException e) {
+                            System.out.println("Client disconnected: " + e.getMessage());
+                            conn.close(key);
+                        }
+                    }
+
+                    if (idleMillis > 0) {
+                        long now = System.currentTimeMillis();
+                        for (SelectionKey key : selector.keys()) {
+                            Connection conn = (Connection) key.attachment();
+                            if (key.isValid() && conn.idle(now, idleMillis)) {
+                                System.out.println("連線閒置超過 " + Server.KEEP_ALIVE_IDLE_SECONDS + " 秒，已關閉（處理 "
+                                    + conn.served + " 個請求）");
+                                conn.close(key);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * 連線狀態：累積請求位元組 → 交給工作執行緒 → 寫回回應。
+         * v2 交握的 8 位元組一收到就立即回覆（用戶端會等交握回覆才送出請求）；
+         * 接受持續連線時寫完回應後繼續處理下一個訊框（可能已在緩衝區中），否則寫完即關閉。
+         * 同一連線一次只處理一個請求，回應依請求順序送出。
+         */
+        private class Connection {
+            private final SocketChannel channel;
+            private ByteBuffer in = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+            private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+            // v2 交握接受的功能旗標，-1 表示尚未交握（或為 v1 連線）
+            private int accepted = -1;
+            // 請求交給工作執行緒處理中
+            private boolean busy;
+            // 寫完待送資料後關閉連線
+            private boolean closeAfterWrite;
+            private boolean closed;
+            // 此連線計入 buffered 的位元組（處理中的大型請求在回應送出前仍計入）
+            private long reserved;
+            private long lastActive = System.currentTimeMillis();
+            int served;
+
+            Connection(SocketChannel channel) {
+                this.channel = channel;
+            }
+
+            void onReadable(SelectionKey key) throws IOException {
+                int n = channel.read(in);
+                if (n == -1) {
+                    throw new EOFException("連接中斷");
+                }
+                Metrics.bytesIn(n);
+                lastActive = System.currentTimeMillis();
+                process(key);
+            }
+
+            /**
+             * 處理緩衝區中已收到的資料：回覆 v2 交握，或在請求完整時交給工作執行緒
+             */
+            private void process(SelectionKey key) throws IOException {
+                if (busy || closeAfterWrite) return;
+
+                if (accepted < 0 && in.position() > 0 && in.get(0) == Protocol.MAGIC[0]) {
+                    if (in.position() < Protocol.HANDSHAKE_SIZE) return;
+                    ByteArrayOutputStream reply = new ByteArrayOutputStream(Protocol.HANDSHAKE_SIZE);
+                    accepted = Protocol.handshakeV2(new DataInputStream(
+                            new ByteArrayInputStream(in.array(), 0, Protocol.HANDSHAKE_SIZE)),
+                        new DataOutputStream(reply), Server.KEEP_ALIVE_IDLE_SECONDS > 0);
+                    consume(Protocol.HANDSHAKE_SIZE);
+                    send(key, reply.toByteArray());
+                }
+
+                boolean v2 = accepted >= 0;
+                long needed = requestLength(in, v2);
+                if (needed > in.capacity() || (needed < 0 && !in.hasRemaining())) {
+                    long capacity = needed > in.capacity() ? needed : (long) in.capacity() * 2;
+                    if (!reserve(capacity)) {
+                        reject(key, v2);
+                        return;
+                    }
+                    grow(capacity);
+                }
+                if (needed >= 0 && in.position() >= needed) {
+                    byte[] request;
+                    if (in.position() == needed && in.capacity() > INITIAL_READ_BUFFER) {
+                        // 大型請求直接交出整個緩衝區，不再複製一份
+                        request = in.array();
+                        in = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+                    } else {
+                        request = Arrays.copyOf(in.array(), (int) needed);
+                        consume((int) needed);
+                    }
+                    busy = true;
+                    // 處理期間暫停讀取（寫出交握回覆時仍需 OP_WRITE）
+                    key.interestOps(out.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+                    dispatch(key, request, (int) needed, v2);
+                }
+            }
+
+            /**
+             * 緩衝區擴充到 capacity 前先向全域上限預留超出初始大小的部分，額度不足時回傳 false
+             */
+            private boolean reserve(long capacity) {
+                long extra = capacity - INITIAL_READ_BUFFER - reserved;
+                if (extra <= 0) return true;
+                if (buffered.addAndGet(extra) > maxBufferedBytes) {
+                    buffered.addAndGet(-extra);
+                    return false;
+                }
+                reserved += extra;
+                return true;
+            }
+
+            /**
+             * 請求處理完後把預留額度調回目前緩衝區實際超出初始大小的部分
+             */
+            private void settle() {
+                long keep = Math.max(0, in.capacity() - INITIAL_READ_BUFFER);
+                buffered.addAndGet(keep - reserved);
+                reserved = keep;
+            }
+
+            /**
+             * 緩衝額度已滿：回覆錯誤後關閉連線，不再讀取請求內容
+             */
+            private void reject(SelectionKey key, boolean v2) throws IOException {
+                Metrics.count("nio.rejectedLarge");
+                System.out.println("NIO 緩衝已滿，拒絕大型請求");
+                String message = "❌ 伺服器忙碌中，暫時無法接收大型請求，請稍後重試";
+                ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                DataOutputStream dout = new DataOutputStream(reply);
+                if (v2) {
+                    byte[] error = message.getBytes(StandardCharsets.UTF_8);
+                    int requestId = in.getInt(2);
+                    Protocol.writeFrame(dout, Protocol.TYPE_ERROR, Protocol.FLAG_END, requestId, error, 0, error.length);
+                } else {
+                    dout.writeUTF(message);
+                }
+                dout.flush();
+                closeAfterWrite = true;
+                send(key, reply.toByteArray());
+            }
+
+            /**
+             * 移除緩衝區開頭已處理的 n 位元組
+             */
+            private void consume(int n) {
+                in.flip();
+                in.position(n);
+                in.compact();
+            }
+
+            private void grow(long capacity) {
+                ByteBuffer bigger = ByteBuffer.allocate((int) capacity);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+
+            private void dispatch(SelectionKey key, byte[] request, int length, boolean v2) {
+                int caps = accepted;
+                workers.execute(() -> {
+                    try {
+                        DataInputStream din = new DataInputStream(new ByteArrayInputStream(request, 0, length));
+                        ByteArrayOutputStream response = new ByteArrayOutputStream();
+                        DataOutputStream dout = new DataOutputStream(response);
+
+                        boolean keepOpen;
+                        if (v2) {
+                            keepOpen = Protocol.serveV2Frame(din.read(), din, dout, caps)
+                                && (caps & Protocol.CAP_KEEP_ALIVE) != 0;
+                        } else {
+                            Protocol.serveV1(din, dout);
+                            keepOpen = false;
+                        }
+                        dout.flush();
+
+                        byte[] reply = response.toByteArray();
+                        execute(() -> {
+                            if (!key.isValid()) return;
+                            busy = false;
+                            served++;
+                            settle();
+                            closeAfterWrite = !keepOpen;
+                            try {
+                                send(key, reply);
+                                // 用戶端可能已連續送出下一個請求
+                                process(key);
+                            } catch (IOException e) {
+                                System.out.println("Client disconnected: " + e.getMessage());
+                                close(key);
+                            }
+                        });
+                    } catch (IOException e) {
+                        System.out.println("Client disconnected: " + e.getMessage());
+                        execute(() -> abort(key));
+                    } catch (RuntimeException e) {
+                        // 命令處理的程式錯誤不能讓連線停在處理中：否則不再讀取、緩衝額度不會歸還、連線也不會關閉
+                        System.out.println("處理請求時發生錯誤: " + e);
+                        e.printStackTrace();
+                        execute(() -> abort(key));
+                    }
+                });
+            }
+
+            /**
+             * 請求處理失敗：歸還緩衝額度並關閉連線（在 I/O 執行緒上呼叫）
+             */
+            private void abort(SelectionKey key) {
+                busy = false;
+                settle();
+                close(key);
+            }
+
+            /**
+             * 排入待送資料並盡量立即寫出，寫不完的部分等 OP_WRITE
+             */
+            private void send(SelectionKey key, byte[] bytes) throws IOException {
+                out.add(ByteBuffer.wrap(bytes));
+                onWritable(key);
+            }
+
+            void onWritable(SelectionKey key) throws IOException {
+                while (!out.isEmpty()) {
+                    ByteBuffer head = out.peek();
+                    Metrics.bytesOut(channel.write(head));
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    out.poll();
+                }
+                lastActive = System.currentTimeMillis();
+                if (closeAfterWrite) {
+                    close(key);
+                } else {
+                    key.interestOps(busy ? 0 : SelectionKey.OP_READ);
+                }
+            }
+
+            boolean idle(long now, long idleMillis) {
+                return !busy && out.isEmpty() && accepted >= 0 && now - lastActive > idleMillis;
+            }
+
+            void close(SelectionKey key) {
+                if (closed) return;
+                closed = true;
+                buffered.addAndGet(-reserved);
+                reserved = 0;
+                Metrics.connectionClosed();
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,635 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 用戶端與伺服器之間的通訊協定。
+ *
+ * v1：命令與回應都是 DataOutputStream.writeUTF 字串，單一回應最多 65535 bytes。
+ * v2：連線開頭以 magic 位元組協商，之後改用 int 長度的訊框，大型回應可切成多個訊框串流傳送。
+ *
+ * v2 交握：用戶端送出 'C' 'F' 'P' + 版本(1 byte) + 功能旗標(int)，伺服器以相同格式回覆接受的旗標。
+ * v2 訊框：type(1) + flags(1) + requestId(int) + length(int) + payload(length bytes)。
+ * 請求 payload 的內容與 v1 相同（writeUTF 命令 + 命令參數），
+ * 回應由一個或多個 RESPONSE 訊框組成，最後一個帶有 FLAG_END。
+ *
+ * 交握旗標帶有 CAP_KEEP_ALIVE 且伺服器接受時，同一連線可連續送出多個請求（可不等待回應），
+ * 伺服器依收到的順序處理並以 requestId 標示每個回應；閒置超過設定時間即關閉連線。
+ *
+ * 交握旗標可另外帶上 CAP_DEFLATE / CAP_GZIP 表示支援的壓縮格式，伺服器最多接受其中一種（優先 deflate）。
+ * 接受後，超過 Server.COMPRESSION_MIN_BYTES 的文字回應與串流回應會以該格式壓縮，
+ * 該回應的每個訊框都帶有 FLAG_COMPRESSED，所有訊框 payload 串接起來才是完整的壓縮資料。
+ * 排行榜等以版本號識別內容的回應會快取壓縮結果，內容未變動時不重新壓縮。
+ *
+ * 交握旗標帶有 CAP_HEADERS 時，回應的 RESPONSE 訊框之前可能先有數個 HEADER 訊框，
+ * 每個 payload 為一行 UTF-8 的 "名稱: 值"（例如排行榜的 "Age: 秒數"，表示距離上次從上游更新的時間）。
+ *
+ * GET_IMAGE <hash> [size] 以 blob() 回應原圖或縮圖的原始位元組：v1 為 writeLong(大小，找不到時 -1) + 內容；
+ * v2 為帶有 FLAG_IMMUTABLE 的 RESPONSE 訊框（找不到時為 ERROR 訊框），表示同一雜湊的內容永遠不變、可無限期快取。
+ *
+ * v1 命令字串長度不會超過 255 bytes，writeUTF 的第一個位元組一定是 0，因此可用第一個位元組區分版本。
+ */
+public class Protocol {
+    public static final byte[] MAGIC = {'C', 'F', 'P'};
+    public static final int VERSION_2 = 2;
+
+    public static final byte TYPE_REQUEST = 1;
+    public static final byte TYPE_RESPONSE = 2;
+    public static final byte TYPE_ERROR = 3;
+    public static final byte TYPE_HEADER = 4;
+
+    // 回應的最後一個訊框
+    public static final byte FLAG_END = 1;
+    // 回應內容以雜湊定址、永遠不變，用戶端可無限期快取
+    public static final byte FLAG_IMMUTABLE = 2;
+    // 回應內容以交握時協商的格式壓縮
+    public static final byte FLAG_COMPRESSED = 4;
+
+    // 交握功能旗標：持續連線（一個連線多個請求）
+    public static final int CAP_KEEP_ALIVE = 1;
+    // 交握功能旗標：支援的壓縮格式（zlib deflate / gzip）
+    public static final int CAP_DEFLATE = 2;
+    public static final int CAP_GZIP = 4;
+    // 交握功能旗標：接受回應前的 HEADER 訊框
+    public static final int CAP_HEADERS = 8;
+
+    public static final int HANDSHAKE_SIZE = 8;
+    public static final int HEADER_SIZE = 10;
+    // 串流回應每個訊框的大小
+    public static final int CHUNK_SIZE = 65536;
+    // 單一請求訊框上限：最大圖片 50MB 加上命令與姓名
+    public static final int MAX_REQUEST_SIZE = 50 * 1024 * 1024 + 65536;
+
+    /**
+     * 命令處理結果的輸出方式，依協定版本不同而有不同實作
+     */
+    public interface Responder {
+        /**
+         * 回應一段文字訊息
+         */
+        void text(String message) throws IOException;
+
+        /**
+         * 開啟串流回應，寫入 UTF-8 位元組，close() 時結束回應
+         */
+        OutputStream body() throws IOException;
+
+        /**
+         * 如果已有 name 在此版本的回應（依協商的壓縮格式）快取，直接送出並回傳 true
+         */
+        boolean replay(String name, long version) throws IOException;
+
+        /**
+         * 與 body() 相同，但把送出的內容以 name 與版本號快取，供之後的 replay() 使用
+         */
+        OutputStream body(String name, long version) throws IOException;
+
+        /**
+         * 回應一個檔案的原始位元組（內容不可變），file 為 null 表示找不到
+         */
+        void blob(Path file) throws IOException;
+
+        /**
+         * 是否能傳送超過 64KB 的回應而不需要先完整緩衝
+         */
+        boolean streaming();
+
+        /**
+         * 在回應內容之前附加一個標頭（例如 Age），必須在送出任何內容之前呼叫；用戶端不支援時忽略
+         */
+        void header(String name, String value) throws IOException;
+
+        /**
+         * 以錯誤結束回應；串流回應已送出部分內容時，用戶端應捨棄已收到的部分（body 仍應 close 以釋放壓縮資源，但不會再送出任何內容）
+         */
+        void error(String message) throws IOException;
+    }
+
+    /**
+     * 依第一個位元組判斷協定版本，並處理該連線上的請求。
+     * socket 為 null（例如 NIO 前端的記憶體串流）時不提供持續連線。
+     */
+    static void serve(DataInputStream in, DataOutputStream out, Socket socket) throws IOException {
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        if (first == MAGIC[0]) {
+            serveV2(in, out, socket);
+        } else {
+            serveV1(in, out);
+        }
+    }
+
+    static void serveV1(DataInputStream in, DataOutputStream out) throws IOException {
+        String command = in.readUTF();
+        System.out.println("收到命令: " + command);
+        ClientHandler.handleCommand(command, in, new V1Responder(out));
+    }
+
+    static void serveV2(DataInputStream in, DataOutputStream out, Socket socket) throws IOException {
+        int idleSeconds = Server.KEEP_ALIVE_IDLE_SECONDS;
+        int accepted = handshakeV2(in, out, socket != null && idleSeconds > 0);
+        boolean keepAlive = (accepted & CAP_KEEP_ALIVE) != 0;
+        if (keepAlive) {
+            socket.setSoTimeout(idleSeconds * 1000);
+        }
+
+        int served = 0;
+        do {
+            int type;
+            try {
+                type = in.read();
+            } catch (SocketTimeoutException e) {
+                System.out.println("連線閒置超過 " + idleSeconds + " 秒，已關閉（處理 " + served + " 個請求）");
+                return;
+            }
+            // 用戶端在兩個請求之間關閉連線
+            if (type == -1) return;
+            if (!serveV2Frame(type, in, out, accepted)) return;
+            served++;
+        } while (keepAlive);
+    }
+
+    /**
+     * 讀取 v2 交握並回覆伺服器接受的功能旗標（keepAliveAllowed 為 false 時不接受持續連線），回傳接受的旗標
+     */
+    static int handshakeV2(DataInputStream in, DataOutputStream out, boolean keepAliveAllowed) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        int version = in.readUnsignedByte();
+        int requested = in.readInt();
+        if (magic[1] != MAGIC[1] || magic[2] != MAGIC[2] || version < VERSION_2) {
+            throw new IOException("不支援的協定交握");
+        }
+
+        boolean keepAlive = (requested & CAP_KEEP_ALIVE) != 0 && keepAliveAllowed;
+        int accepted = (keepAlive ? CAP_KEEP_ALIVE : 0) | negotiateCodec(requested) | (requested & CAP_HEADERS);
+        out.write(MAGIC);
+        out.writeByte(VERSION_2);
+        out.writeInt(accepted);
+        // 用戶端可能等收到交握回覆才決定是否連續送出請求
+        out.flush();
+        return accepted;
+    }
+
+    /**
+     * 處理一個 v2 請求訊框（type 已讀取），accepted 為交握時接受的功能旗標；
+     * 訊框無效時回覆錯誤訊框並回傳 false（連線應關閉）
+     */
+    static boolean serveV2Frame(int type, DataInputStream in, DataOutputStream out, int accepted) throws IOException {
+        in.readByte(); // 請求訊框目前沒有旗標
+        int requestId = in.readInt();
+        int length = in.readInt();
+        if (type != TYPE_REQUEST || length < 0 || length > MAX_REQUEST_SIZE) {
+            byte[] error = ("❌ 無效的請求訊框").getBytes(StandardCharsets.UTF_8);
+            writeFrame(out, TYPE_ERROR, FLAG_END, requestId, error, 0, error.length);
+            out.flush();
+            return false;
+        }
+
+        BoundedInputStream bounded = new BoundedInputStream(in, length);
+        DataInputStream payload = new DataInputStream(bounded);
+        String command = payload.readUTF();
+        System.out.println("收到命令 (v2 #" + requestId + "): " + command);
+        int codec = accepted & (CAP_DEFLATE | CAP_GZIP);
+        boolean headers = (accepted & CAP_HEADERS) != 0;
+        ClientHandler.handleCommand(command, payload, new V2Responder(out, requestId, codec, headers));
+        // 略過命令未讀完的參數，讓下一個訊框對齊
+        bounded.drain();
+        return true;
+    }
+
+    /**
+     * 從用戶端支援的壓縮格式中選一種（deflate 優先，用戶端可以邊收邊解壓），都不支援或已停用時回傳 0
+     */
+    static int negotiateCodec(int requested) {
+        if (!Server.COMPRESSION) return 0;
+        if ((requested & CAP_DEFLATE) != 0) return CAP_DEFLATE;
+        if ((requested & CAP_GZIP) != 0) return CAP_GZIP;
+        return 0;
+    }
+
+    static OutputStream compressor(int codec, OutputStream out) throws IOException {
+        return codec == CAP_GZIP ? new GZIPOutputStream(out, CHUNK_SIZE) : new DeflaterOutputStream(out);
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, byte flags, int requestId,
+                           byte[] buf, int off, int len) throws IOException {
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.writeInt(requestId);
+        out.writeInt(len);
+        out.write(buf, off, len);
+    }
+
+    /**
+     * v1：所有回應都以 writeUTF 送出，串流回應先緩衝再一次寫出
+     */
+    static class V1Responder implements Responder {
+        private final DataOutputStream out;
+        // 已以錯誤結束回應，之後 body 的內容不再送出
+        private boolean failed;
+
+        V1Responder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void text(String message) throws IOException {
+            out.writeUTF(message);
+            out.flush();
+        }
+
+        @Override
+        public OutputStream body() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    if (!failed) text(toString(StandardCharsets.UTF_8));
+                }
+            };
+        }
+
+        @Override
+        public boolean replay(String name, long version) {
+            return false;
+        }
+
+        @Override
+        public OutputStream body(String name, long version) {
+            return body();
+        }
+
+        @Override
+        public void blob(Path file) throws IOException {
+            if (file == null) {
+                out.writeLong(-1);
+            } else {
+                out.writeLong(Files.size(file));
+                Files.copy(file, out);
+            }
+            out.flush();
+        }
+
+        @Override
+        public boolean streaming() {
+            return false;
+        }
+
+        @Override
+        public void header(String name, String value) {
+            // writeUTF 回應沒有標頭
+        }
+
+        @Override
+        public void error(String message) throws IOException {
+            failed = true;
+            text(message);
+        }
+    }
+
+    /**
+     * v2：文字回應為單一訊框，串流回應每 CHUNK_SIZE bytes 送出一個訊框；
+     * 有協商壓縮格式時，大型文字回應與串流回應都會壓縮
+     */
+    static class V2Responder implements Responder {
+        private final DataOutputStream out;
+        private final int requestId;
+        // 協商的壓縮格式（CAP_DEFLATE / CAP_GZIP），0 表示不壓縮
+        private final int codec;
+        // 用戶端是否接受 HEADER 訊框（CAP_HEADERS）
+        private final boolean headers;
+        // 最近開啟的串流回應，以錯誤結束時捨棄
+        private ChunkedBody open;
+        // 已以錯誤結束回應，之後開啟的串流回應直接捨棄
+        private boolean failed;
+
+        V2Responder(DataOutputStream out, int requestId, int codec, boolean headers) {
+            this.out = out;
+            this.requestId = requestId;
+            this.codec = codec;
+            this.headers = headers;
+        }
+
+        @Override
+        public void text(String message) throws IOException {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            if (codec != 0 && bytes.length >= Server.COMPRESSION_MIN_BYTES) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+                try (OutputStream z = compressor(codec, compressed)) {
+                    z.write(bytes);
+                }
+                writeChunks(compressed.toByteArray(), FLAG_COMPRESSED);
+                return;
+            }
+            writeFrame(out, TYPE_RESPONSE, FLAG_END, requestId, bytes, 0, bytes.length);
+            out.flush();
+        }
+
+        @Override
+        public OutputStream body() {
+            return codec == 0 ? chunked((byte) 0) : new ThresholdBody(null);
+        }
+
+        @Override
+        public boolean replay(String name, long version) throws IOException {
+            CompressedCache.Cached cached = CompressedCache.get(name, codec, version);
+            if (cached == null) return false;
+            writeChunks(cached.bytes, cached.flags);
+            return true;
+        }
+
+        @Override
+        public OutputStream body(String name, long version) {
+            Capture capture = (flags, bytes) -> CompressedCache.put(name, codec, version, flags, bytes);
+            if (codec != 0) return new ThresholdBody(capture);
+            ChunkedBody body = chunked((byte) 0);
+            body.capture(bytes -> capture.accept((byte) 0, bytes));
+            return body;
+        }
+
+        private ChunkedBody chunked(byte flags) {
+            open = new ChunkedBody(out, requestId, flags);
+            if (failed) open.discard();
+            return open;
+        }
+
+        private void writeChunks(byte[] bytes, byte flags) throws IOException {
+            int off = 0;
+            do {
+                int len = Math.min(CHUNK_SIZE, bytes.length - off);
+                boolean last = off + len == bytes.length;
+                writeFrame(out, TYPE_RESPONSE, (byte) (flags | (last ? FLAG_END : 0)), requestId, bytes, off, len);
+                off += len;
+            } while (off < bytes.length);
+            out.flush();
+        }
+
+        @Override
+        public void blob(Path file) throws IOException {
+            if (file == null) {
+                byte[] error = ("❌ 找不到圖片").getBytes(StandardCharsets.UTF_8);
+                writeFrame(out, TYPE_ERROR, FLAG_END, requestId, error, 0, error.length);
+                out.flush();
+                return;
+            }
+            try (OutputStream body = new ChunkedBody(out, requestId, FLAG_IMMUTABLE)) {
+                Files.copy(file, body);
+            }
+        }
+
+        @Override
+        public boolean streaming() {
+            return true;
+        }
+
+        @Override
+        public void header(String name, String value) throws IOException {
+            if (!headers) return;
+            byte[] line = (name + ": " + value).getBytes(StandardCharsets.UTF_8);
+            writeFrame(out, TYPE_HEADER, (byte) 0, requestId, line, 0, line.length);
+        }
+
+        @Override
+        public void error(String message) throws IOException {
+            failed = true;
+            if (open != null) open.discard();
+            byte[] error = message.getBytes(StandardCharsets.UTF_8);
+            writeFrame(out, TYPE_ERROR, FLAG_END, requestId, error, 0, error.length);
+            out.flush();
+        }
+
+        /**
+         * 接收送出的完整內容與訊框旗標（供快取）
+         */
+        private interface Capture {
+            void accept(byte flags, byte[] bytes);
+        }
+
+        /**
+         * 與 text() 相同的壓縮門檻：先緩衝未達 COMPRESSION_MIN_BYTES 的內容，
+         * 超過時改以壓縮串流送出，結束時仍未超過則不壓縮直接送出
+         */
+        private class ThresholdBody extends OutputStream {
+            private final Capture capture;
+            private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+            private OutputStream target;
+
+            ThresholdBody(Capture capture) {
+                this.capture = capture;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (target == null) {
+                    if (pending.size() + len < Server.COMPRESSION_MIN_BYTES) {
+                        pending.write(b, off, len);
+                        return;
+                    }
+                    target = compressor(codec, start(FLAG_COMPRESSED));
+                    pending.writeTo(target);
+                }
+                target.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (target == null) {
+                    target = start((byte) 0);
+                    pending.writeTo(target);
+                }
+                target.close();
+            }
+
+            private ChunkedBody start(byte flags) {
+                ChunkedBody body = chunked(flags);
+                if (capture != null) body.capture(bytes -> capture.accept(flags, bytes));
+                return body;
+            }
+        }
+    }
+
+    /**
+     * 把寫入的資料切成多個 RESPONSE 訊框，只保留一個訊框大小的緩衝區
+     */
+    static class ChunkedBody extends OutputStream {
+        private final DataOutputStream out;
+        private final int requestId;
+        // 每個訊框都帶有的旗標
+        private final byte flags;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+        private boolean closed;
+        // 回應已以錯誤結束：之後寫入的內容（例如壓縮串流收尾的資料）全部丟棄
+        private boolean discarded;
+        // 另外保留一份送出的內容（供快取），超過上限就放棄
+        private ByteArrayOutputStream copy;
+        private Consumer<byte[]> onComplete;
+
+        void capture(Consumer<byte[]> onComplete) {
+            this.copy = new ByteArrayOutputStream();
+            this.onComplete = onComplete;
+        }
+
+        ChunkedBody(DataOutputStream out, int requestId, byte flags) {
+            this.out = out;
+            this.requestId = requestId;
+            this.flags = flags;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (discarded) return;
+            if (count == buffer.length) emit((byte) 0);
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (discarded) return;
+            while (len > 0) {
+                if (count == buffer.length) emit((byte) 0);
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            emit(FLAG_END);
+            out.flush();
+            if (copy != null) onComplete.accept(copy.toByteArray());
+        }
+
+        void discard() {
+            discarded = true;
+            closed = true;
+            copy = null;
+            count = 0;
+        }
+
+        private void emit(byte last) throws IOException {
+            if (copy != null) {
+                if (copy.size() + count > CompressedCache.MAX_ENTRY_SIZE) {
+                    copy = null;
+                } else {
+                    copy.write(buffer, 0, count);
+                }
+            }
+            writeFrame(out, TYPE_RESPONSE, (byte) (flags | last), requestId, buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * 以名稱、壓縮格式與內容版本號快取的回應內容；每個名稱與格式只保留最新版本
+     */
+    static class CompressedCache {
+        // 單一回應最多快取的大小
+        static final int MAX_ENTRY_SIZE = 16 * 1024 * 1024;
+
+        static final class Cached {
+            final long version;
+            // 送出時每個訊框帶的旗標（內容未達壓縮門檻時不含 FLAG_COMPRESSED）
+            final byte flags;
+            final byte[] bytes;
+
+            Cached(long version, byte flags, byte[] bytes) {
+                this.version = version;
+                this.flags = flags;
+                this.bytes = bytes;
+            }
+        }
+
+        private static final Map<String, Cached> cache = new ConcurrentHashMap<>();
+
+        static Cached get(String name, int codec, long version) {
+            Cached c = cache.get(name + "/" + codec);
+            return c != null && c.version == version ? c : null;
+        }
+
+        static void put(String name, int codec, long version, byte flags, byte[] bytes) {
+            cache.merge(name + "/" + codec, new Cached(version, flags, bytes),
+                (old, fresh) -> old.version > fresh.version ? old : fresh);
+        }
+    }
+
+    /**
+     * 只允許讀取訊框 payload 範圍內的資料
+     */
+    static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = super.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        void drain() throws IOException {
+            while (remaining > 0) {
+                long n = super.skip(remaining);
+                if (n <= 0) {
+                    if (super.read() == -1) throw new EOFException("連接中斷");
+                    n = 1;
+                }
+                remaining -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            // 不關閉底層連線
+        }
+    }
+}
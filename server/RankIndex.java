@@ -0,0 +1,235 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 依 (碳排放量, 姓名) 排序的名次索引：以記錄子樹大小的 treap 實作，
+ * 更新、查詢名次與依名次取資料都是 O(log n)。
+ *
+ * 排序方式與 RankingActivity 相同：數值越小名次越前，無法解析的碳排放量視為 0。
+ */
+public class RankIndex {
+
+    /**
+     * 索引中的一筆資料與其名次（從 1 開始）
+     */
+    public static final class Ranked {
+        public final int rank;
+        public final String name;
+        public final double total;
+
+        Ranked(int rank, String name, double total) {
+            this.rank = rank;
+            this.name = name;
+            this.total = total;
+        }
+    }
+
+    private static final class Node {
+        final double total;
+        final String name;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        Node left;
+        Node right;
+        int size = 1;
+
+        Node(double total, String name) {
+            this.total = total;
+            this.name = name;
+        }
+    }
+
+    private Node root;
+    // 目前每位使用者在索引中的碳排放量，用來找到舊節點
+    private final Map<String, Double> totals = new HashMap<>();
+    // 更新時互斥，查詢可同時進行
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    static double parseTotal(String total) {
+        try {
+            return Double.parseDouble(total);
+        } catch (NumberFormatException | NullPointerException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 新增使用者或更新其碳排放量
+     */
+    public void put(String name, String total) {
+        double value = parseTotal(total);
+        lock.writeLock().lock();
+        try {
+            Double old = totals.put(name, value);
+            if (old != null) {
+                if (old == value) return;
+                root = delete(root, old, name);
+            }
+            Node[] parts = split(root, value, name);
+            root = merge(merge(parts[0], new Node(value, name)), parts[1]);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String name) {
+        lock.writeLock().lock();
+        try {
+            Double old = totals.remove(name);
+            if (old != null) root = delete(root, old, name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size(root);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 使用者的名次（從 1 開始），不在索引中時回傳 -1
+     */
+    public int rank(String name) {
+        lock.readLock().lock();
+        try {
+            Double total = totals.get(name);
+            return total == null ? -1 : rankOf(total, name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 從第 from 名（從 1 開始）起依序取最多 count 筆
+     */
+    public List<Ranked> range(int from, int count) {
+        lock.readLock().lock();
+        try {
+            return collect(from, count);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 使用者本身與前後各 k 名，使用者不在索引中時回傳空列表
+     */
+    public List<Ranked> window(String name, int k) {
+        lock.readLock().lock();
+        try {
+            Double total = totals.get(name);
+            if (total == null) return Collections.emptyList();
+            int rank = rankOf(total, name);
+            int from = Math.max(1, rank - k);
+            return collect(from, rank + k - from + 1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Ranked> collect(int from, int count) {
+        List<Ranked> result = new ArrayList<>();
+        int n = size(root);
+        for (int rank = Math.max(1, from); rank <= n && result.size() < count; rank++) {
+            Node node = select(rank);
+            result.add(new Ranked(rank, node.name, node.total));
+        }
+        return result;
+    }
+
+    private int rankOf(double total, String name) {
+        int rank = 0;
+        Node node = root;
+        while (node != null) {
+            int cmp = compare(total, name, node);
+            if (cmp < 0) {
+                node = node.left;
+            } else {
+                rank += size(node.left) + 1;
+                if (cmp == 0) return rank;
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+
+    private Node select(int rank) {
+        Node node = root;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (rank <= leftSize) {
+                node = node.left;
+            } else if (rank == leftSize + 1) {
+                return node;
+            } else {
+                rank -= leftSize + 1;
+                node = node.right;
+            }
+        }
+        throw new IllegalStateException("名次超出範圍");
+    }
+
+    private static int compare(double total, String name, Node node) {
+        int cmp = Double.compare(total, node.total);
+        return cmp != 0 ? cmp : name.compareTo(node.name);
+    }
+
+    /**
+     * 分成小於 (total, name) 與大於等於 (total, name) 的兩棵樹
+     */
+    private static Node[] split(Node node, double total, String name) {
+        if (node == null) return new Node[]{null, null};
+        if (compare(total, name, node) > 0) {
+            Node[] parts = split(node.right, total, name);
+            node.right = parts[0];
+            update(node);
+            return new Node[]{node, parts[1]};
+        }
+        Node[] parts = split(node.left, total, name);
+        node.left = parts[1];
+        update(node);
+        return new Node[]{parts[0], node};
+    }
+
+    /**
+     * 合併兩棵樹，a 中的所有鍵都小於 b
+     */
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        update(b);
+        return b;
+    }
+
+    private static Node delete(Node node, double total, String name) {
+        if (node == null) return null;
+        int cmp = compare(total, name, node);
+        if (cmp == 0) return merge(node.left, node.right);
+        if (cmp < 0) {
+            node.left = delete(node.left, total, name);
+        } else {
+            node.right = delete(node.right, total, name);
+        }
+        update(node);
+        return node;
+    }
+
+    private static void update(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+}
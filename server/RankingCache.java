@@ -0,0 +1,513 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * 伺服器端排行榜快取：GET_RANKING / GET_RANKING_WITH_IMAGE 直接由記憶體回應。
+ *
+ * 碳排放量由 saveData 直接更新（write-through），圖片由 UPLOAD_IMAGE 直接更新；
+ * 另以固定間隔從 Google Sheets 重新讀取，補上圖片與只存在於試算表中的使用者（其他來源新增）。
+ * 本機資料庫是碳排放量的主要來源：本機已有紀錄的使用者不採用試算表中的碳排放量，
+ * 直接在試算表中修改這些使用者的數值不會反映到排行榜（之後的本機更新也會覆蓋試算表）。
+ *
+ * 圖片存放在 BlobStore，快取中只保留 SHA-256 雜湊：GET_RANKING 每筆附上 imageHash，
+ * 用戶端再以 GET_IMAGE 取回尚未快取的圖片；只有舊版的 GET_RANKING_WITH_IMAGE 才會把圖片內嵌為 Base64。
+ *
+ * 每次內容變動都會取得一個遞增的版本號並記在該筆資料上（移除的使用者留下墓碑），
+ * GET_RANKING_SINCE 只回傳指定版本之後新增、修改與移除的資料。
+ * 版本號從啟動時間（毫秒 x 1000）開始，伺服器重新啟動後舊的版本號一律視為需要完整資料。
+ *
+ * 碳排放量變動時同步更新 RankIndex，GET_MY_RANK / GET_RANK_WINDOW / GET_RANKING_PAGE 不需要排序全部資料。
+ *
+ * 回應前以 revalidate() 檢查內容的年齡（距離上次成功從上游更新的時間，stale-while-revalidate）：
+ * 未超過 fresh 直接回應；超過 fresh 但未超過 fresh + stale 時照常回應並在背景更新；
+ * 更舊時等待更新完成。上游無法連線時一律以現有內容回應，不會回傳空的排行榜。
+ *
+ * 沒有上游（loader 為 null，未使用 Google Sheets）時內容完全來自本機資料庫，
+ * 不做重新整理，年齡一律為 0。
+ */
+public class RankingCache {
+
+    /**
+     * 加載上游（Google Sheets，含圖片）資料的介面，失敗時應丟出例外而非回傳空陣列
+     */
+    public interface Loader {
+        String load() throws IOException;
+    }
+
+    private static final class Entry {
+        final String name;
+        final String total;
+        // 圖片在 BlobStore 中的雜湊，沒有圖片時為空字串
+        final String imageHash;
+        // 本機最後一次修改時間，重新整理時用來判斷是否保留本機版本
+        final long updatedAt;
+        // 內容最後一次變動與第一次出現時的版本號
+        final long version;
+        final long createdVersion;
+
+        Entry(String name, String total, String imageHash, long updatedAt, long version, long createdVersion) {
+            this.name = name;
+            this.total = total;
+            this.imageHash = imageHash;
+            this.updatedAt = updatedAt;
+            this.version = version;
+            this.createdVersion = createdVersion;
+        }
+    }
+
+    private static final class Rendered {
+        final long version;
+        final String json;
+
+        Rendered(long version, String json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    // 上游失敗後，至少間隔此時間才再由請求觸發更新（期間直接以現有內容回應）
+    private static final long RETRY_MILLIS = 10_000;
+
+    private final BlobStore blobs;
+    private final Loader loader;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // 已移除的使用者與移除時的版本號
+    private final Map<String, Long> removed = new ConcurrentHashMap<>();
+    // 這次啟動的第一個版本號，更早的版本號無法計算差異
+    private final long startVersion = System.currentTimeMillis() * 1000;
+    // 每次內容變動就遞增，序列化結果只在版本相同時重複使用
+    private final AtomicLong version = new AtomicLong(startVersion);
+    // 依碳排放量排序的名次索引
+    private final RankIndex index = new RankIndex();
+    // 修改時持有讀取鎖（彼此不互斥）；計算差異前短暫取得寫入鎖，確保已取得版本號的修改都已寫入
+    private final ReentrantReadWriteLock changes = new ReentrantReadWriteLock();
+    private volatile Rendered ranking;
+    private volatile Rendered rankingWithImages;
+    private volatile boolean imagesLoaded;
+    // 進行中的重新整理，同時要求重新整理的呼叫端共用同一次結果
+    private CompletableFuture<Void> refreshing;
+
+    private ScheduledExecutorService scheduler;
+    private long freshMillis = Long.MAX_VALUE;
+    private long staleMillis;
+    // 上次成功從上游更新的時間（尚未更新過時為建立時間，內容來自本機資料庫）與上次失敗的時間
+    private volatile long refreshedAt = System.currentTimeMillis();
+    private volatile long failedAt;
+    // 已排入背景更新、尚未開始執行
+    private final AtomicBoolean revalidateQueued = new AtomicBoolean();
+
+    /**
+     * loader 為 null 時沒有上游，只使用本機資料庫的內容
+     */
+    public RankingCache(DataStore store, BlobStore blobs, Loader loader) {
+        this.blobs = blobs;
+        this.loader = loader;
+        this.imagesLoaded = loader == null;
+        for (DataStore.Record r : store.records()) {
+            entries.put(r.name, new Entry(r.name, r.total, r.imageHash, r.timestamp, startVersion, startVersion));
+            index.put(r.name, r.total);
+        }
+    }
+
+    /**
+     * 啟動背景重新整理（每 refreshSeconds 秒一次，第一次立即執行），
+     * 並設定 revalidate() 的新鮮期限 freshSeconds 與之後可直接回應舊內容的期限 staleSeconds
+     */
+    public void start(long refreshSeconds, long freshSeconds, long staleSeconds) {
+        this.freshMillis = freshSeconds * 1000;
+        this.staleMillis = staleSeconds * 1000;
+        if (loader == null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ranking-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 回應前呼叫：依內容的年齡決定直接回應、背景更新或等待更新，回傳（更新後的）年齡（秒）
+     */
+    public long revalidate() {
+        if (loader == null) return 0;
+        long now = System.currentTimeMillis();
+        long age = now - refreshedAt;
+        if (age < freshMillis || scheduler == null) return age / 1000;
+        // 上游剛失敗過，不再讓每個請求都去嘗試
+        if (now - failedAt < RETRY_MILLIS) {
+            Metrics.count("ranking.staleServed");
+            return age / 1000;
+        }
+
+        if (age < freshMillis + staleMillis) {
+            if (revalidateQueued.compareAndSet(false, true)) {
+                scheduler.execute(() -> {
+                    revalidateQueued.set(false);
+                    // 排隊期間可能已由定時更新完成
+                    if (System.currentTimeMillis() - refreshedAt >= freshMillis) refreshQuietly();
+                });
+            }
+            Metrics.count("ranking.staleServed");
+        } else {
+            refreshQuietly();
+        }
+        return (System.currentTimeMillis() - refreshedAt) / 1000;
+    }
+
+    /**
+     * 距離上次成功從上游更新的時間（秒）
+     */
+    public long ageSeconds() {
+        if (loader == null) return 0;
+        return (System.currentTimeMillis() - refreshedAt) / 1000;
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (IOException e) {
+            System.out.println("排行榜快取更新失敗，繼續使用現有資料（已 " + ageSeconds() + " 秒未更新）: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 是否已從上游載入過圖片（之前含圖片的排行榜可能只是載入失敗時沒有圖片的本機內容）
+     */
+    public boolean imagesLoaded() {
+        return imagesLoaded;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 目前內容的版本號，內容變動時遞增（可作為回應快取的鍵）
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * 不含圖片內容的排行榜 JSON（有圖片的使用者附上 imageHash）
+     */
+    public String ranking() {
+        Rendered r = ranking;
+        long v = version.get();
+        if (r != null && r.version == v) return r.json;
+        r = new Rendered(v, render(false));
+        ranking = r;
+        return r.json;
+    }
+
+    /**
+     * 含圖片的排行榜 JSON；尚未從上游載入過圖片時會先同步載入一次，載入失敗則以現有內容（沒有圖片）回應
+     */
+    public String rankingWithImages() {
+        loadImages();
+        Rendered r = rankingWithImages;
+        long v = version.get();
+        if (r != null && r.version == v) return r.json;
+        r = new Rendered(v, render(true));
+        rankingWithImages = r;
+        return r.json;
+    }
+
+    /**
+     * 逐筆把含圖片的排行榜寫入串流，每次只序列化一位使用者，不建立完整字串
+     */
+    public void writeRankingWithImages(OutputStream out) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        loadImages();
+
+        w.write('[');
+        boolean first = true;
+        for (Entry e : entries.values()) {
+            if (!first) w.write(',');
+            first = false;
+            w.write(toJson(e, true).toString());
+        }
+        w.write(']');
+        w.flush();
+    }
+
+    private void loadImages() {
+        if (imagesLoaded) return;
+        try {
+            refresh();
+        } catch (IOException e) {
+            System.out.println("無法從上游載入圖片，以現有排行榜回應: " + e.getMessage());
+        }
+    }
+
+    public void updateTotal(String name, String total) {
+        update(name, old -> change(old, name, total, old != null ? old.imageHash : "", System.currentTimeMillis()));
+    }
+
+    public void updateImage(String name, String imageHash) {
+        update(name, old -> change(old, name, old != null ? old.total : "", imageHash, System.currentTimeMillis()));
+    }
+
+    /**
+     * 回傳指定版本之後的變動：
+     * {"version": 目前版本, "full": 是否為完整資料, "added": [...], "changed": [...], "removed": [姓名...]}。
+     * since 早於這次啟動（或為 0）時回傳完整資料，用戶端應以 added 取代整個列表。
+     */
+    public String since(long since) {
+        long current;
+        changes.writeLock().lock();
+        try {
+            current = version.get();
+        } finally {
+            changes.writeLock().unlock();
+        }
+
+        boolean full = since < startVersion || since > current;
+        JSONArray added = new JSONArray();
+        JSONArray changed = new JSONArray();
+        JSONArray gone = new JSONArray();
+        // 也會帶上 current 之後才完成的變動，用戶端下次以 current 查詢時重複收到也不影響結果
+        for (Entry e : entries.values()) {
+            if (full || e.createdVersion > since) {
+                added.put(toJson(e, false));
+            } else if (e.version > since) {
+                changed.put(toJson(e, false));
+            }
+        }
+        if (!full) {
+            removed.forEach((name, v) -> {
+                if (v > since) gone.put(name);
+            });
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("version", current);
+        obj.put("full", full);
+        obj.put("added", added);
+        obj.put("changed", changed);
+        obj.put("removed", gone);
+        return obj.toString();
+    }
+
+    /**
+     * 使用者的名次：{"name", "total", "imageHash", "rank", "count"}，找不到使用者時回傳 null
+     */
+    public String rankOf(String name) {
+        int rank = index.rank(name);
+        if (rank < 0) return null;
+        JSONObject obj = rankedJson(new RankIndex.Ranked(rank, name, 0));
+        obj.put("count", index.size());
+        return obj.toString();
+    }
+
+    /**
+     * 使用者與其前後各 k 名：{"rank", "count", "entries": [{"rank", "name", "total", "imageHash"}...]}，
+     * 找不到使用者時回傳 null
+     */
+    public String rankWindow(String name, int k) {
+        List<RankIndex.Ranked> window = index.window(name, k);
+        if (window.isEmpty()) return null;
+        JSONArray arr = new JSONArray();
+        int rank = -1;
+        for (RankIndex.Ranked r : window) {
+            if (r.name.equals(name)) rank = r.rank;
+            arr.put(rankedJson(r));
+        }
+        JSONObject obj = new JSONObject();
+        obj.put("rank", rank);
+        obj.put("count", index.size());
+        obj.put("entries", arr);
+        return obj.toString();
+    }
+
+    /**
+     * 依名次排序的一頁資料：{"offset", "limit", "count", "entries": [{"rank", "name", "total", "imageHash"[, "image"]}...]}，
+     * offset 從 0 開始，超出名次範圍時回傳空頁；withImages 時每筆另外內嵌 Base64 圖片
+     */
+    public String page(int offset, int limit, boolean withImages) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset 與 limit 不可為負數");
+        }
+        JSONArray arr = new JSONArray();
+        int count = index.size();
+        // offset < count 時 offset + 1 不會溢位（offset 為 Integer.MAX_VALUE 時直接回傳空頁）
+        if (offset < count) {
+            for (RankIndex.Ranked r : index.range(offset + 1, limit)) {
+                arr.put(rankedJson(r, withImages));
+            }
+        }
+        JSONObject obj = new JSONObject();
+        obj.put("offset", offset);
+        obj.put("limit", limit);
+        obj.put("count", count);
+        obj.put("entries", arr);
+        return obj.toString();
+    }
+
+    private JSONObject rankedJson(RankIndex.Ranked r) {
+        return rankedJson(r, false);
+    }
+
+    private JSONObject rankedJson(RankIndex.Ranked r, boolean withImages) {
+        Entry e = entries.get(r.name);
+        JSONObject obj = e != null ? toJson(e, withImages) : new JSONObject().put("name", r.name).put("total", String.valueOf(r.total));
+        obj.put("rank", r.rank);
+        return obj;
+    }
+
+    private void update(String name, UnaryOperator<Entry> fn) {
+        changes.readLock().lock();
+        try {
+            entries.compute(name, (k, old) -> fn.apply(old));
+            removed.remove(name);
+        } finally {
+            changes.readLock().unlock();
+        }
+    }
+
+    /**
+     * 產生修改後的資料；內容（碳排放量與圖片）有變動時才取得新的版本號
+     */
+    private Entry change(Entry old, String name, String total, String imageHash, long updatedAt) {
+        if (old != null && old.total.equals(total) && old.imageHash.equals(imageHash)) {
+            return old.updatedAt == updatedAt ? old
+                : new Entry(name, total, imageHash, updatedAt, old.version, old.createdVersion);
+        }
+        if (old == null || !old.total.equals(total)) {
+            index.put(name, total);
+        }
+        long v = version.incrementAndGet();
+        return new Entry(name, total, imageHash, updatedAt, v, old != null ? old.createdVersion : v);
+    }
+
+    /**
+     * 從上游重新讀取並與本機資料合併；已有重新整理在進行時不另外讀取，等待並共用該次結果
+     * （計入 "ranking.refresh.collapsed" 次數）
+     */
+    public void refresh() throws IOException {
+        if (loader == null) return;
+        CompletableFuture<Void> shared;
+        boolean owner;
+        synchronized (this) {
+            owner = refreshing == null;
+            if (owner) refreshing = new CompletableFuture<>();
+            shared = refreshing;
+        }
+        if (!owner) {
+            Metrics.count("ranking.refresh.collapsed");
+            UpstreamClient.await(shared);
+            return;
+        }
+
+        Throwable failure = null;
+        try {
+            merge();
+            refreshedAt = System.currentTimeMillis();
+        } catch (Throwable e) {
+            failure = e;
+            failedAt = System.currentTimeMillis();
+            throw e;
+        } finally {
+            synchronized (this) {
+                refreshing = null;
+            }
+            if (failure != null) {
+                shared.completeExceptionally(failure);
+            } else {
+                shared.complete(null);
+            }
+        }
+    }
+
+    /**
+     * 只存在於上游的使用者以上游為準；本機有紀錄的使用者保留本機的碳排放量，只更新圖片
+     * （本機在這次讀取開始後才修改的使用者完全保留本機版本）。
+     * 上游已刪除且本機未曾修改的使用者會一併移除。同一時間只有一個執行緒執行（由 refresh 保證）
+     */
+    private void merge() throws IOException {
+        long startedAt = System.currentTimeMillis();
+        JSONArray arr = new JSONArray(loader.load());
+
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < arr.length(); i++) {
+            JSONObject obj = arr.getJSONObject(i);
+            String name = obj.optString("name");
+            if (name.isEmpty()) continue;
+            seen.add(name);
+            String total = obj.optString("total", "");
+            String image = storeImage(name, obj.optString("image", ""));
+            update(name, old -> {
+                if (old == null) return change(null, name, total, image, 0);
+                if (old.updatedAt >= startedAt) return old;
+                // 本機資料庫才是碳排放量的主要來源，已有本機紀錄時只更新圖片
+                return change(old, name, old.updatedAt > 0 ? old.total : total, image, old.updatedAt);
+            });
+        }
+        for (Entry e : entries.values()) {
+            if (e.updatedAt == 0 && !seen.contains(e.name)) remove(e);
+        }
+
+        // 版本號只在 change/remove 實際有變動時遞增，內容相同的重新整理不會讓已快取的回應失效
+        imagesLoaded = true;
+        System.out.println("排行榜快取已更新，共 " + entries.size() + " 筆");
+    }
+
+    private void remove(Entry e) {
+        changes.readLock().lock();
+        try {
+            if (entries.remove(e.name, e)) {
+                index.remove(e.name);
+                removed.put(e.name, version.incrementAndGet());
+            }
+        } finally {
+            changes.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把上游的 Base64 圖片放進 BlobStore（相同內容只存一份），回傳雜湊；格式錯誤時視為沒有圖片
+     */
+    private String storeImage(String name, String base64) throws IOException {
+        try {
+            return blobs.putBase64(base64);
+        } catch (IllegalArgumentException e) {
+            System.out.println("略過無法解碼的圖片 (" + name + "): " + e.getMessage());
+            return "";
+        }
+    }
+
+    private String render(boolean withImages) {
+        JSONArray arr = new JSONArray();
+        for (Entry e : entries.values()) {
+            arr.put(toJson(e, withImages));
+        }
+        return arr.toString();
+    }
+
+    private JSONObject toJson(Entry e, boolean withImages) {
+        JSONObject obj = new JSONObject();
+        obj.put("name", e.name);
+        obj.put("total", e.total);
+        if (!e.imageHash.isEmpty()) obj.put("imageHash", e.imageHash);
+        if (withImages) obj.put("image", readImage(e));
+        return obj;
+    }
+
+    private String readImage(Entry e) {
+        if (e.imageHash.isEmpty()) return "";
+        try {
+            return blobs.readBase64(e.imageHash);
+        } catch (IOException ex) {
+            System.out.println("讀取圖片失敗 (" + e.name + "): " + ex.getMessage());
+            return "";
+        }
+    }
+}
@@ -1,10 +1,29 @@
 /*
  javac -cp ".;lib/json-20231013.jar" Server.java
  java -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.mode=nio -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.mode=nio -Dserver.nio.maxBufferedMB=256 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.mode=virtual -Dserver.upstream.maxConcurrent=16 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.sheets.sink=false -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.ranking.refreshSeconds=300 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.ranking.freshSeconds=300 -Dserver.ranking.staleSeconds=3600 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.sheets.flushMillis=5000 -Dserver.sheets.batchSize=200 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.keepAlive.idleSeconds=60 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.blobDir=blobs -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.compression=true -Dserver.compression.minBytes=1024 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.stats.file=stats.jsonl -Dserver.stats.intervalSeconds=60 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.thumbnail.sizes=64,150,300 -Dserver.thumbnail.workers=4 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.upstream.url=http://localhost:8090/exec -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.upstream.hedge.budgetPercent=5 -Dserver.upstream.hedge.minMillis=200 -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.upload.fastAck=true -Dserver.store.fsync=true -cp ".;lib/json-20231013.jar" Server 5000 Hello
+ java -Dserver.ranking.passThrough=true -Dserver.ranking.passThrough.validate=true -cp ".;lib/json-20231013.jar" Server 5000 Hello
 */
 import java.net.*;
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -13,7 +32,8 @@ public class Server {
     private static int port;
     private static String messageout;
     private static final String DATA_FILE = "data.txt";
-    private static final String urlString = "https://script.google.com/macros/s/AKfycbxcTHEwwAyBUjqfDk3cwhhOzxLLaYt2N3gIVGrkVXSVRMrJnpL9Ypu9OrYklIVMvLJq4w/exec";
+    // 上游 Apps Script 網址，可改指向本機的 SheetsStub 以離線測試
+    private static final String urlString = System.getProperty("server.upstream.url", "https://script.google.com/macros/s/AKfycbxcTHEwwAyBUjqfDk3cwhhOzxLLaYt2N3gIVGrkVXSVRMrJnpL9Ypu9OrYklIVMvLJq4w/exec");
     public static final String URL_STRING = urlString;
     
     // 設定緩衝區大小為 64KB，適合大型檔案傳輸
@@ -21,6 +41,78 @@ public class Server {
     // 設定最大檔案大小為 50MB
     private static final long MAX_FILE_SIZE = 50 * 1024 * 1024;
 
+    // 🔹 啟動模式：thread（每個連線一個執行緒，預設）、virtual（虛擬執行緒）或 nio（Selector 非阻塞）
+    private static final String MODE = System.getProperty("server.mode", "thread");
+    // NIO 模式下的 I/O 執行緒數量
+    private static final int IO_THREADS = Integer.getInteger("server.ioThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    // NIO 模式下處理命令（呼叫 Google Sheets）的工作執行緒數量
+    private static final int WORKER_THREADS = Integer.getInteger("server.workers", 32);
+    // NIO 模式下所有連線讀取緩衝區超出初始大小的部分合計上限（MB），超過時拒絕大型請求
+    private static final long NIO_MAX_BUFFERED_MB = Long.getLong("server.nio.maxBufferedMB", 256);
+    // 同時進行中的上游（Google Sheets）請求上限
+    private static final int UPSTREAM_MAX_CONCURRENT = Integer.getInteger("server.upstream.maxConcurrent", 16);
+    // 圖片上傳與含圖片排行榜使用獨立名額，慢速的大型圖片請求不會佔滿一般資料的名額
+    private static final int UPSTREAM_MAX_CONCURRENT_IMAGES = Integer.getInteger("server.upstream.maxConcurrentImages", 4);
+    // 讀取超過 p95 耗時仍未回應時另外送出的避險請求：最多佔讀取次數的百分比（0 表示停用）與門檻下限（毫秒）
+    private static final double UPSTREAM_HEDGE_BUDGET_PERCENT =
+            Double.parseDouble(System.getProperty("server.upstream.hedge.budgetPercent", "5"));
+    private static final long UPSTREAM_HEDGE_MIN_MILLIS = Long.getLong("server.upstream.hedge.minMillis", 200);
+    // v2 持續連線的閒置逾時（秒），0 表示停用持續連線
+    static final int KEEP_ALIVE_IDLE_SECONDS = Integer.getInteger("server.keepAlive.idleSeconds", 60);
+    // v2 是否接受用戶端要求的回應壓縮，以及文字回應超過多少 bytes 才壓縮
+    static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("server.compression", "true"));
+    static final int COMPRESSION_MIN_BYTES = Integer.getInteger("server.compression.minBytes", 1024);
+    // 定時把統計寫入的檔案（未設定則不寫檔）與間隔秒數
+    private static final String STATS_FILE = System.getProperty("server.stats.file");
+    private static final long STATS_INTERVAL_SECONDS = Long.getLong("server.stats.intervalSeconds", 60);
+    // 寫入用分段鎖數量
+    private static final int WRITE_STRIPES = Integer.getInteger("server.writeStripes", 64);
+
+    // 🔹 是否使用 Google Sheets（本機資料庫才是主要資料來源）：false 時不轉送上傳資料與圖片，
+    //    排行榜只由本機資料庫提供，完全不連線 Apps Script
+    static final boolean SHEETS_SINK = Boolean.parseBoolean(System.getProperty("server.sheets.sink", "true"));
+    // 每次寫入後是否 fsync 日誌檔（較安全但較慢）
+    private static final boolean STORE_FSYNC = Boolean.getBoolean("server.store.fsync");
+    // 延後寫入 Google Sheets：批次送出的間隔（毫秒）與每批最多筆數
+    private static final long SHEETS_FLUSH_MILLIS = Long.getLong("server.sheets.flushMillis", 5000);
+    private static final int SHEETS_BATCH_SIZE = Integer.getInteger("server.sheets.batchSize", 200);
+    // sort.gs 批次上傳成功時回應的開頭
+    private static final String SHEETS_BATCH_OK = "批次上傳成功";
+    // 已送達 Google Sheets 的日誌序號，重新啟動時補送之後的更新
+    private static final String UPSTREAM_CHECKPOINT_FILE = DATA_FILE + ".upstream";
+    // UPLOAD_DATA 寫入本機日誌後立即回覆簡短 JSON 狀態與序號，而不是完整排行榜（預設關閉，舊版用戶端解析的是排行榜文字）；
+    // 回覆時資料只保證在本機日誌中，未開啟 server.store.fsync 時斷電仍可能遺失尚未送到 Google Sheets 的更新
+    static final boolean UPLOAD_FAST_ACK = Boolean.getBoolean("server.upload.fastAck");
+    // GET_RANKING_WITH_IMAGE（v2）直接轉送上游的原始內容而不經過本機快取，以及轉送時是否同時檢查 JSON 格式
+    static final boolean RANKING_PASS_THROUGH = Boolean.getBoolean("server.ranking.passThrough");
+    static final boolean RANKING_PASS_THROUGH_VALIDATE =
+            Boolean.parseBoolean(System.getProperty("server.ranking.passThrough.validate", "true"));
+    // 圖片（以 SHA-256 內容定址）的儲存目錄
+    private static final String BLOB_DIR = System.getProperty("server.blobDir", "blobs");
+    // 縮圖尺寸（px）與產生縮圖的工作執行緒數量
+    private static final String THUMBNAIL_SIZES = System.getProperty("server.thumbnail.sizes", "64,150,300");
+    private static final int THUMBNAIL_WORKERS = Integer.getInteger("server.thumbnail.workers",
+            Runtime.getRuntime().availableProcessors());
+    // 排行榜快取與 Google Sheets 重新同步的間隔（秒）
+    private static final long RANKING_REFRESH_SECONDS = Long.getLong("server.ranking.refreshSeconds", 300);
+    // 排行榜未超過 fresh 秒直接回應；超過時照常回應並在背景更新，再超過 stale 秒則等待更新完成（上游無法連線時仍以現有內容回應）
+    private static final long RANKING_FRESH_SECONDS = Long.getLong("server.ranking.freshSeconds", RANKING_REFRESH_SECONDS);
+    private static final long RANKING_STALE_SECONDS = Long.getLong("server.ranking.staleSeconds", 3600);
+
+    // 所有上游呼叫共用的非同步 HTTP 用戶端（連線重複使用，一般資料與圖片各有同時請求上限）
+    private static final UpstreamClient upstream =
+            new UpstreamClient(urlString, UPSTREAM_MAX_CONCURRENT, UPSTREAM_MAX_CONCURRENT_IMAGES,
+                    UPSTREAM_HEDGE_BUDGET_PERCENT, UPSTREAM_HEDGE_MIN_MILLIS);
+    // 同一使用者的日誌、快取與佇列更新依序進行，不同使用者互不阻塞
+    private static final StripedLocks writeLocks = new StripedLocks(WRITE_STRIPES);
+    // 合併同一使用者的更新後批次轉送到 Google Sheets
+    private static WriteBehindQueue sheetsSink;
+    private static DataStore store;
+    private static BlobStore blobStore;
+    private static ThumbnailPipeline thumbnails;
+    private static RankingCache rankingCache;
+
     public Server() {
         try {
             serverSocket = new ServerSocket(port);
@@ -32,11 +124,19 @@ public class Server {
                 InetAddress.getLocalHost().getHostAddress() +
                 " and port " + port);
             System.out.println("Max file size: " + (MAX_FILE_SIZE / 1024 / 1024) + " MB");
+            System.out.println("Mode: " + MODE + ", max concurrent upstream requests: " + UPSTREAM_MAX_CONCURRENT +
+                " (images: " + UPSTREAM_MAX_CONCURRENT_IMAGES + ")");
+
+            ExecutorService executor = MODE.equals("virtual") ? newVirtualThreadExecutor() : null;
 
             while (true) {
                 Socket socket = serverSocket.accept();
                 System.out.println("Connected from client: " + socket.getInetAddress().getHostAddress());
-                new Thread(new ClientHandler(socket, messageout)).start();
+                if (executor != null) {
+                    executor.execute(new ClientHandler(socket, messageout));
+                } else {
+                    new Thread(new ClientHandler(socket, messageout)).start();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -52,323 +152,324 @@ public class Server {
         }
     }   
 
-    public static synchronized void saveData(String name, String total) {
+    /**
+     * 建立每個任務一個虛擬執行緒的 executor（Java 21+），舊版 JVM 則退回快取執行緒池
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
         try {
-            JSONObject obj = new JSONObject();
-            obj.put("name", name);
-            obj.put("total", total);
-
-            URL url = new URL(urlString);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(30000); // 30秒連接超時
-            conn.setReadTimeout(30000);    // 30秒讀取超時
-
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(obj.toString().getBytes("UTF-8"));
-            }
-
-            int responseCode = conn.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                System.out.println("成功上傳至 Google Sheets");
-            } else {
-                System.out.println("上傳失敗，狀態碼: " + responseCode);
-            }
-
-            conn.disconnect();
-        } catch (Exception e) {
-            System.out.println("Error uploading to Google Sheets: " + e.getMessage());
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("此 JVM 不支援虛擬執行緒（需要 Java 21+），改用一般執行緒池");
+            return Executors.newCachedThreadPool();
         }
     }
 
-    public static synchronized String readAllData() {
-        try {
-            URL url = new URL(urlString);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setConnectTimeout(15000);
-            conn.setReadTimeout(15000);
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) sb.append(line);
-            br.close();
-
-            return sb.toString();
-        } catch (Exception e) {
-            return "[]";
-        }
+    static UpstreamClient upstream() {
+        return upstream;
     }
 
-    // 🔹 新增：讀取包含圖片的完整資料（使用 InputStream）
-    public static synchronized String readAllDataWithImages() {
-        InputStream inputStream = null;
-        ByteArrayOutputStream baos = null;
-        
-        try {
-            // 🔹 重要：確保 URL 正確編碼參數
-            String fullUrl = urlString + "?includeImages=true";
-            System.out.println("請求 URL: " + fullUrl);
-            
-            URL url = new URL(fullUrl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setConnectTimeout(30000); // 因為有圖片，延長超時時間
-            conn.setReadTimeout(30000);
-            conn.setRequestProperty("Accept-Charset", "UTF-8");
-
-            // 檢查回應碼
-            int responseCode = conn.getResponseCode();
-            System.out.println("回應碼: " + responseCode);
-            
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                System.out.println("HTTP 錯誤: " + responseCode);
-                return "[]";
-            }
+    /**
+     * 設定本機資料庫、圖片儲存與排行榜快取（main 與效能測試共用）
+     */
+    static void useStorage(DataStore dataStore, BlobStore blobs, RankingCache cache) {
+        store = dataStore;
+        blobStore = blobs;
+        rankingCache = cache;
+    }
 
-            // 🔹 使用 InputStream 分塊讀取
-            inputStream = conn.getInputStream();
-            baos = new ByteArrayOutputStream();
-            
-            byte[] buffer = new byte[8192]; // 8KB 緩衝區
-            int bytesRead;
-            long totalBytes = 0;
-            
-            System.out.println("開始讀取資料...");
-            
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                baos.write(buffer, 0, bytesRead);
-                totalBytes += bytesRead;
-                
-                // 每讀取 100KB 顯示一次進度
-                if (totalBytes % (100 * 1024) == 0) {
-                    System.out.println("已讀取: " + (totalBytes / 1024) + " KB");
+    /**
+     * 寫入本機資料庫（append-only 日誌），再排入佇列批次轉送到 Google Sheets；
+     * 回傳該筆更新的日誌序號，寫入失敗時回傳 -1
+     */
+    public static long saveData(String name, String total) {
+        ReentrantLock lock = writeLocks.get(name);
+        lock.lock();
+        try {
+            return store.append(name, total, record -> {
+                rankingCache.updateTotal(name, total);
+                if (sheetsSink != null) {
+                    sheetsSink.enqueue(name, total, record.seq);
                 }
-            }
-            
-            // 轉換為字串
-            String result = baos.toString("UTF-8");
-            System.out.println("成功讀取含圖片的資料，總大小: " + (totalBytes / 1024) + " KB (" + totalBytes + " bytes)");
-            
-            // 顯示前 500 個字元用於除錯
-            if (result.length() > 0) {
-                System.out.println("資料前 500 字元: " + result.substring(0, Math.min(500, result.length())));
-            }
-            
-            conn.disconnect();
-            return result;
-            
-        } catch (Exception e) {
-            System.out.println("Error reading data with images: " + e.getMessage());
-            e.printStackTrace();
-            return "[]";
+            }).seq;
+        } catch (IOException e) {
+            System.out.println("Error writing local store: " + e.getMessage());
+            return -1;
         } finally {
-            // 確保資源被關閉
-            try {
-                if (baos != null) baos.close();
-                if (inputStream != null) inputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            lock.unlock();
         }
     }
 
-    public static void main(String[] args) {
-        if (args.length < 2) {
-            System.out.println("Usage: java Server [port] [messageout]");
-            System.exit(1);
-        }
-        port = Integer.parseInt(args[0]);
-        messageout = args[1];
-        new Server();
+    /**
+     * 待轉送到 Google Sheets 的使用者數量（未啟用時為 0）
+     */
+    static int pendingUpstream() {
+        return sheetsSink == null ? 0 : sheetsSink.size();
     }
-}
 
-class ClientHandler implements Runnable {
-    private Socket socket;
-    private String messageout;
-    private static final int BUFFER_SIZE = 65536;
-    private static final long MAX_FILE_SIZE = 50 * 1024 * 1024;
+    /**
+     * 讀取已送達上游的日誌序號；檔案不存在（第一次啟動或舊版資料）時視為全部已送達
+     */
+    private static long readUpstreamCheckpoint() {
+        try {
+            return Long.parseLong(Files.readString(Paths.get(UPSTREAM_CHECKPOINT_FILE)).trim());
+        } catch (NoSuchFileException e) {
+            // 立即寫入，之後的更新若在第一次送出前當機也能補送
+            long seq = store.lastSeq();
+            writeUpstreamCheckpoint(seq);
+            return seq;
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("無法讀取上游同步進度，重新送出所有資料: " + e.getMessage());
+            return 0;
+        }
+    }
 
-    public ClientHandler(Socket socket, String messageout) {
-        this.socket = socket;
-        this.messageout = messageout;
+    private static void writeUpstreamCheckpoint(long seq) {
+        try {
+            Path file = Paths.get(UPSTREAM_CHECKPOINT_FILE);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(tmp, Long.toString(seq));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("無法寫入上游同步進度: " + e.getMessage());
+        }
     }
 
-    @Override
-    public void run() {
-        DataInputStream in = null;
-        DataOutputStream out = null;
-        
+    /**
+     * 以單一請求批次更新多位使用者（對應 sort.gs 的 batch 參數）
+     */
+    private static boolean postBatch(Map<String, String> batch) {
+        JSONArray rows = new JSONArray();
+        batch.forEach((name, total) -> {
+            JSONObject row = new JSONObject();
+            row.put("name", name);
+            row.put("total", total);
+            rows.put(row);
+        });
+        JSONObject obj = new JSONObject();
+        obj.put("batch", rows);
+
         try {
-            // 設定 socket 選項以優化大檔案傳輸
-            socket.setSendBufferSize(BUFFER_SIZE);
-            socket.setReceiveBufferSize(BUFFER_SIZE);
-            socket.setTcpNoDelay(false); // 啟用 Nagle 演算法以提高效率
-            
-            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
-            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
-
-            // 讀取命令類型
-            String command = in.readUTF();
-            System.out.println("收到命令: " + command);
-
-            // ✅ 排行榜請求（不含圖片）
-            if (command.equals("GET_RANKING")) {
-                String allData = Server.readAllData();
-                out.writeUTF("=== 所有上傳資料 ===\n" + allData);
-                out.flush();
+            String reply = UpstreamClient.await(upstream.post("sheets.batch", obj.toString()));
+            // sort.gs 的錯誤（例如取得鎖逾時）也以 HTTP 200 回應，只有成功訊息才算送達，其餘留在佇列重試
+            if (reply.startsWith(SHEETS_BATCH_OK)) {
+                System.out.println("成功批次上傳至 Google Sheets，共 " + batch.size() + " 筆");
+                return true;
             }
+            System.out.println("批次上傳被拒，稍後重試: " + reply.substring(0, Math.min(200, reply.length())));
+            return false;
+        } catch (IOException e) {
+            System.out.println("Error uploading to Google Sheets: " + e.getMessage());
+            return false;
+        }
+    }
 
-            // 🔹 新增：排行榜請求（含圖片）
-            else if (command.equals("GET_RANKING_WITH_IMAGE")) {
-                System.out.println("處理含圖片的排行榜請求...");
-                String allData = Server.readAllDataWithImages();
-                
-                // 檢查資料是否有效
-                if (allData.equals("[]") || allData.isEmpty()) {
-                    out.writeUTF("[]");
-                } else {
-                    out.writeUTF(allData);
-                }
-                out.flush();
-                System.out.println("已傳送排行榜資料（含圖片）");
-            }
+    /**
+     * 從排行榜快取讀取所有使用者的碳排放量
+     */
+    public static String readAllData() {
+        return rankingCache.ranking();
+    }
 
-            // ✅ 大型圖片上傳處理（使用分塊傳輸）
-            else if (command.equals("UPLOAD_IMAGE")) {
-                handleImageUpload(in, out);
-            }
+    /**
+     * 排行榜內容的版本號，內容變動時遞增（用於快取壓縮後的回應）
+     */
+    public static long rankingVersion() {
+        return rankingCache.version();
+    }
 
-            // ✅ 一般資料上傳
-            else if (command.equals("UPLOAD_DATA")) {
-                String data = in.readUTF();
-                String[] parts = data.split(",");
-                String name = parts.length > 0 ? parts[0] : "未知";
-                String total = parts.length > 1 ? parts[1] : "N/A";
+    /**
+     * 含圖片的排行榜是否已有上游資料（尚未載入時不快取回應，下次請求會重試）
+     */
+    static boolean rankingImagesLoaded() {
+        return rankingCache.imagesLoaded();
+    }
 
-                System.out.println("[" + new Date() + "] 收到使用者: " + name + "，碳排放量: " + total + " g CO2");
+    /**
+     * 指定版本之後的排行榜變動（新增、修改、移除）
+     */
+    public static String readRankingSince(long version) {
+        return rankingCache.since(version);
+    }
 
-                Server.saveData(name, total);
+    /**
+     * 使用者的名次（JSON），找不到使用者時回傳 null
+     */
+    public static String readRank(String name) {
+        return rankingCache.rankOf(name);
+    }
 
-                String allData = Server.readAllData();
-                out.writeUTF("伺服器已收到資料！\n\n=== 所有上傳資料 ===\n" + allData);
-                out.flush();
-            }
+    /**
+     * 使用者與其前後各 k 名（JSON），找不到使用者時回傳 null
+     */
+    public static String readRankWindow(String name, int k) {
+        return rankingCache.rankWindow(name, k);
+    }
 
-            else {
-                out.writeUTF("❌ 未知的命令: " + command);
-                out.flush();
-            }
+    /**
+     * 依名次排序的一頁排行榜（JSON），offset 從 0 開始
+     */
+    public static String readRankingPage(int offset, int limit, boolean withImages) {
+        return rankingCache.page(offset, limit, withImages);
+    }
 
+    /**
+     * 圖片存入 BlobStore 後記錄到本機資料庫（重新啟動後仍保留），排行榜快取改指向新圖片的雜湊，並在背景產生縮圖
+     */
+    static void imageUploaded(String name, String imageHash) {
+        ReentrantLock lock = writeLocks.get(name);
+        lock.lock();
+        try {
+            store.appendImage(name, imageHash);
         } catch (IOException e) {
-            System.out.println("Client disconnected: " + e.getMessage());
+            System.out.println("Error writing local store: " + e.getMessage());
         } finally {
-            try {
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (socket != null) socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            lock.unlock();
         }
+        rankingCache.updateImage(name, imageHash);
+        if (thumbnails != null) {
+            thumbnails.submit(imageHash);
+        }
+    }
+
+    /**
+     * 取得圖片：size 為 0 時回傳原圖，否則回傳不小於 size 的最小縮圖；找不到時回傳 null
+     */
+    static Path image(String hash, int size) throws IOException {
+        if (size <= 0 || thumbnails == null) return blobStore.get(hash);
+        return thumbnails.get(hash, size);
     }
 
     /**
-     * 處理大型圖片上傳（使用分塊傳輸，避免記憶體溢出）
+     * 以 SHA-256 內容定址的圖片儲存
      */
-    private void handleImageUpload(DataInputStream in, DataOutputStream out) throws IOException {
+    static BlobStore blobs() {
+        return blobStore;
+    }
+
+    /**
+     * 本機資料庫為空時，從 Google Sheets 匯入既有資料作為初始內容
+     */
+    private static void seedFromSheets() {
         try {
-            // 讀取姓名
-            String name = in.readUTF();
-            System.out.println("接收圖片上傳請求，使用者: " + name);
-
-            // 讀取檔案大小
-            long fileSize = in.readLong();
-            System.out.println("檔案大小: " + (fileSize / 1024) + " KB");
-
-            // 檢查檔案大小
-            if (fileSize > MAX_FILE_SIZE) {
-                out.writeUTF("❌ 檔案過大，最大允許 " + (MAX_FILE_SIZE / 1024 / 1024) + " MB");
-                out.flush();
-                return;
+            JSONArray arr = new JSONArray(UpstreamClient.await(upstream.read(false)));
+            for (int i = 0; i < arr.length(); i++) {
+                JSONObject obj = arr.getJSONObject(i);
+                store.append(obj.optString("name"), obj.optString("total"));
             }
+            System.out.println("已從 Google Sheets 匯入 " + arr.length() + " 筆資料");
+        } catch (Exception e) {
+            System.out.println("Error seeding from Google Sheets: " + e.getMessage());
+        }
+    }
 
-            // 使用分塊讀取，避免一次載入整個檔案到記憶體
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[BUFFER_SIZE];
-            long totalRead = 0;
-            int bytesRead;
-            
-            System.out.println("開始接收檔案資料...");
-            long startTime = System.currentTimeMillis();
-
-            while (totalRead < fileSize) {
-                int toRead = (int) Math.min(BUFFER_SIZE, fileSize - totalRead);
-                bytesRead = in.read(buffer, 0, toRead);
-                
-                if (bytesRead == -1) {
-                    throw new IOException("連接中斷");
-                }
-                
-                baos.write(buffer, 0, bytesRead);
-                totalRead += bytesRead;
-                
-                // 顯示進度
-                if (totalRead % (BUFFER_SIZE * 10) == 0 || totalRead == fileSize) {
-                    int progress = (int) ((totalRead * 100) / fileSize);
-                    System.out.println("接收進度: " + progress + "% (" + (totalRead / 1024) + " KB / " + (fileSize / 1024) + " KB)");
+    // 🔹 新增：讀取包含圖片的完整資料（由排行榜快取回應，上游無法連線時為沒有圖片的現有內容）
+    public static String readAllDataWithImages() {
+        return rankingCache.rankingWithImages();
+    }
+
+    /**
+     * 回應排行榜前呼叫：依內容的年齡直接回應、背景更新或等待更新（stale-while-revalidate），
+     * 並以 Age 標頭告知用戶端距離上次從上游更新的秒數，超過 fresh 時另外附上 Warning
+     */
+    static void revalidateRanking(Protocol.Responder res) throws IOException {
+        long age = rankingCache.revalidate();
+        res.header("Age", String.valueOf(age));
+        if (age >= RANKING_FRESH_SECONDS) {
+            res.header("Warning", "110 - \"Response is Stale\"");
+        }
+    }
+
+    /**
+     * 將含圖片的排行榜直接寫入串流（v2 協定使用），上游無法連線時寫出沒有圖片的現有內容
+     */
+    static void writeAllDataWithImages(OutputStream out) throws IOException {
+        rankingCache.writeRankingWithImages(out);
+    }
+
+    // 讀取包含圖片的完整資料，失敗時丟出例外
+    private static String readUpstreamWithImages() throws IOException {
+        try {
+            String result = UpstreamClient.await(upstream.read(true));
+            System.out.println("成功讀取含圖片的資料，總大小: " + (result.length() / 1024) + " KB");
+            return result;
+        } catch (IOException e) {
+            System.out.println("Error reading data with images: " + e.getMessage());
+            throw e;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java Server [port] [messageout]");
+            System.out.println("Options: -Dserver.mode=thread|virtual|nio -Dserver.ioThreads=N -Dserver.workers=N -Dserver.nio.maxBufferedMB=N");
+            System.out.println("         -Dserver.upstream.maxConcurrent=N -Dserver.upstream.maxConcurrentImages=N -Dserver.writeStripes=N");
+            System.out.println("         -Dserver.sheets.sink=true|false -Dserver.store.fsync=true|false");
+            System.out.println("         -Dserver.keepAlive.idleSeconds=N -Dserver.blobDir=DIR");
+            System.out.println("         -Dserver.thumbnail.sizes=64,150,300 -Dserver.thumbnail.workers=N");
+            System.out.println("         -Dserver.compression=true|false -Dserver.compression.minBytes=N");
+            System.out.println("         -Dserver.stats.file=FILE -Dserver.stats.intervalSeconds=N");
+            System.out.println("         -Dserver.sheets.flushMillis=N -Dserver.sheets.batchSize=N -Dserver.ranking.refreshSeconds=N");
+            System.out.println("         -Dserver.ranking.freshSeconds=N -Dserver.ranking.staleSeconds=N");
+            System.out.println("         -Dserver.upstream.url=URL -Dserver.upload.fastAck=true|false");
+            System.out.println("         -Dserver.upstream.hedge.budgetPercent=N -Dserver.upstream.hedge.minMillis=N");
+            System.out.println("         -Dserver.ranking.passThrough=true|false -Dserver.ranking.passThrough.validate=true|false");
+            System.exit(1);
+        }
+        port = Integer.parseInt(args[0]);
+        messageout = args[1];
+
+        try {
+            useStorage(DataStore.open(Paths.get(DATA_FILE), STORE_FSYNC), new BlobStore(Paths.get(BLOB_DIR)), null);
+        } catch (IOException e) {
+            System.out.println("無法開啟本機資料庫: " + e.getMessage());
+            System.exit(1);
+        }
+        thumbnails = new ThumbnailPipeline(blobStore, ThumbnailPipeline.parseSizes(THUMBNAIL_SIZES), THUMBNAIL_WORKERS);
+        if (store.isEmpty() && SHEETS_SINK) {
+            seedFromSheets();
+        }
+        if (SHEETS_SINK) {
+            long checkpoint = readUpstreamCheckpoint();
+            sheetsSink = new WriteBehindQueue(Server::postBatch, SHEETS_FLUSH_MILLIS, SHEETS_BATCH_SIZE,
+                    store::watermark, Server::writeUpstreamCheckpoint);
+            // 上次關閉前尚未送達的更新由日誌補送
+            int replayed = 0;
+            for (DataStore.Record r : store.records()) {
+                // 只有圖片、沒有碳排放量的使用者不送出（圖片由上傳時直接送出）
+                if (r.seq > checkpoint && !r.total.isEmpty()) {
+                    sheetsSink.enqueue(r.name, r.total, r.seq);
+                    replayed++;
                 }
             }
-
-            long endTime = System.currentTimeMillis();
-            double seconds = (endTime - startTime) / 1000.0;
-            double speed = (fileSize / 1024.0 / 1024.0) / seconds;
-            System.out.println("接收完成！耗時: " + String.format("%.2f", seconds) + " 秒，速度: " + String.format("%.2f", speed) + " MB/s");
-
-            // 將圖片轉換為 Base64
-            byte[] imageBytes = baos.toByteArray();
-            String base64Data = Base64.getEncoder().encodeToString(imageBytes);
-            
-            System.out.println("Base64 編碼完成，長度: " + base64Data.length());
-
-            // 上傳到 Google Sheets
-            JSONObject obj = new JSONObject();
-            obj.put("name", name);
-            obj.put("imageBase64", base64Data);
-
-            URL url = new URL(Server.URL_STRING);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(60000); // 60秒超時，因為圖片可能很大
-            conn.setReadTimeout(60000);
-
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(obj.toString().getBytes("UTF-8"));
+            if (replayed > 0) {
+                System.out.println("補送 " + replayed + " 筆尚未同步到 Google Sheets 的更新");
             }
+        }
+        // 不使用 Google Sheets 時排行榜沒有上游，只由本機資料庫提供
+        useStorage(store, blobStore, new RankingCache(store, blobStore, SHEETS_SINK ? Server::readUpstreamWithImages : null));
+        rankingCache.start(RANKING_REFRESH_SECONDS, RANKING_FRESH_SECONDS, RANKING_STALE_SECONDS);
+
+        Metrics.gauge("upstreamPermitsAvailable", () -> upstream.available(UpstreamClient.DATA));
+        Metrics.gauge("imagePermitsAvailable", () -> upstream.available(UpstreamClient.IMAGES));
+        Metrics.gauge("upstreamQueued", () -> upstream.queued(UpstreamClient.DATA));
+        Metrics.gauge("imageUpstreamQueued", () -> upstream.queued(UpstreamClient.IMAGES));
+        Metrics.gauge("rankingEntries", () -> rankingCache.size());
+        Metrics.gauge("rankingAgeSeconds", () -> rankingCache.ageSeconds());
+        if (sheetsSink != null) {
+            Metrics.gauge("sheetsQueue", sheetsSink::size);
+        }
+        if (STATS_FILE != null) {
+            Metrics.startDump(Paths.get(STATS_FILE), STATS_INTERVAL_SECONDS);
+        }
 
-            int responseCode = conn.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                out.writeUTF("✅ 圖片已成功上傳到 Google Sheet");
-                System.out.println("成功上傳圖片到 Google Sheet: " + name);
-            } else {
-                out.writeUTF("❌ 上傳失敗，狀態碼：" + responseCode);
-                System.out.println("上傳失敗：" + responseCode);
+        if (MODE.equals("nio")) {
+            try {
+                new NioServer(port, IO_THREADS, WORKER_THREADS, NIO_MAX_BUFFERED_MB * 1024 * 1024).run();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-
-            conn.disconnect();
-            out.flush();
-
-        } catch (Exception e) {
-            out.writeUTF("❌ 上傳圖片時發生錯誤：" + e.getMessage());
-            out.flush();
-            System.out.println("Error uploading image: " + e.getMessage());
-            e.printStackTrace();
+        } else {
+            new Server();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,279 @@
+/*
+ 本機模擬的 Google Apps Script（sort.gs），不需網路即可測試與壓測伺服器：
+ javac -cp ".;lib/json-20231013.jar" SheetsStub.java
+ java -cp ".;lib/json-20231013.jar" SheetsStub 8090
+ java -Dstub.latencyMillis=800 -Dstub.jitterMillis=400 -Dstub.failureRate=0.02 -cp ".;lib/json-20231013.jar" SheetsStub 8090
+ java -Dstub.errorRate=0.2 -cp ".;lib/json-20231013.jar" SheetsStub 8090
+ java -Dstub.slowRate=0.03 -Dstub.slowMillis=5000 -cp ".;lib/json-20231013.jar" SheetsStub 8090
+ java -Dstub.quota=20000 -Dstub.quotaWindowSeconds=86400 -Dstub.users=10000 -cp ".;lib/json-20231013.jar" SheetsStub 8090
+ java -Dserver.upstream.url=http://localhost:8090/exec -cp ".;lib/json-20231013.jar" Server 5000 Hello
+*/
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * 以 com.sun.net.httpserver 實作 sort.gs 的 doGet / doPost：資料存在記憶體中的「工作表」
+ * （依新增順序排列的 姓名 / 碳排放量 / 圖片 三欄），回應內容與 Apps Script 相同。
+ *
+ * 可模擬上游的延遲、隨機延遲、少數特別慢的請求（長尾）、隨機失敗（HTTP 500 或 HTTP 200 的錯誤訊息）與配額（超過時回傳 HTTP 429），
+ * 也可在記憶體中預先建立大量使用者。
+ */
+public class SheetsStub {
+    // 每個請求固定延遲與額外的隨機延遲（0 ~ jitter 毫秒）
+    private static final long LATENCY_MILLIS = Long.getLong("stub.latencyMillis", 0);
+    private static final long JITTER_MILLIS = Long.getLong("stub.jitterMillis", 0);
+    // 長尾：此比例（0 ~ 1）的請求額外延遲 slowMillis 毫秒
+    private static final double SLOW_RATE = Double.parseDouble(System.getProperty("stub.slowRate", "0"));
+    private static final long SLOW_MILLIS = Long.getLong("stub.slowMillis", 5000);
+    // 隨機失敗的比例（0 ~ 1）
+    private static final double FAILURE_RATE = Double.parseDouble(System.getProperty("stub.failureRate", "0"));
+    // doPost 以 HTTP 200 回傳 "Error: ..." 的比例（0 ~ 1），與 sort.gs 發生例外或取得鎖逾時時相同
+    private static final double ERROR_RATE = Double.parseDouble(System.getProperty("stub.errorRate", "0"));
+    // 每個配額區間最多接受的請求數，0 表示不限制（Apps Script URL Fetch 為每天 20,000 次）
+    private static final long QUOTA = Long.getLong("stub.quota", 0);
+    private static final long QUOTA_WINDOW_SECONDS = Long.getLong("stub.quotaWindowSeconds", 86400);
+    // 同時處理的請求數，超過時排隊（Apps Script 同時執行數約 30）
+    private static final int THREADS = Integer.getInteger("stub.threads", 30);
+    // 啟動時預先建立的使用者數量
+    private static final int SEED_USERS = Integer.getInteger("stub.users", 0);
+
+    /**
+     * 工作表的一列：A 欄姓名、B 欄碳排放量、C 欄 Base64 圖片
+     */
+    private static final class Row {
+        final String name;
+        String total;
+        String image;
+
+        Row(String name, String total, String image) {
+            this.name = name;
+            this.total = total;
+            this.image = image;
+        }
+    }
+
+    // 姓名 → 列，維持新增順序（相當於工作表的列順序）；整張表以 this 同步（相當於 LockService）
+    private final Map<String, Row> sheet = new LinkedHashMap<>();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong quotaUsed = new AtomicLong();
+    private volatile long quotaWindowStart = System.currentTimeMillis();
+
+    public SheetsStub(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "sheets-stub");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * 建立 count 位使用者（姓名 stub_user_N，碳排放量為隨機值）
+     */
+    public synchronized void seed(int count) {
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            String name = "stub_user_" + i;
+            sheet.put(name, new Row(name, formatNumber(random.nextInt(100000) / 10.0), ""));
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            simulateLatency();
+            if (!takeQuota()) {
+                send(exchange, 429, "text/plain", "Service invoked too many times for one day: urlfetch.");
+                return;
+            }
+            if (FAILURE_RATE > 0 && ThreadLocalRandom.current().nextDouble() < FAILURE_RATE) {
+                send(exchange, 500, "text/html", "<html><body>模擬的上游錯誤</body></html>");
+                return;
+            }
+
+            if (exchange.getRequestMethod().equals("GET")) {
+                boolean includeImages = "true".equals(query(exchange).get("includeImages"));
+                send(exchange, 200, "application/json", doGet(includeImages));
+            } else if (exchange.getRequestMethod().equals("POST")) {
+                String body;
+                try (InputStream in = exchange.getRequestBody()) {
+                    body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+                if (ERROR_RATE > 0 && ThreadLocalRandom.current().nextDouble() < ERROR_RATE) {
+                    send(exchange, 200, "text/plain", "Error: Exception: Lock timeout: another process was holding the lock for too long.");
+                    return;
+                }
+                send(exchange, 200, "text/plain", doPost(body));
+            } else {
+                send(exchange, 405, "text/plain", "Method not allowed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 對應 sort.gs 的 doGet：回傳所有列（略過沒有姓名的列），includeImages 時加上 image 欄
+     */
+    synchronized String doGet(boolean includeImages) {
+        JSONArray arr = new JSONArray();
+        for (Row row : sheet.values()) {
+            JSONObject record = new JSONObject();
+            record.put("name", row.name);
+            record.put("total", row.total);
+            if (includeImages) {
+                record.put("image", row.image);
+            }
+            arr.put(record);
+        }
+        return arr.toString();
+    }
+
+    /**
+     * 對應 sort.gs 的 doPost：圖片上傳、批次上傳或單筆資料上傳，回傳相同的文字訊息
+     */
+    synchronized String doPost(String body) {
+        try {
+            JSONObject data = new JSONObject(body);
+
+            if (!data.optString("imageBase64").isEmpty()) {
+                String name = data.optString("name");
+                if (name.isEmpty()) name = "未知使用者";
+                Row row = sheet.get(name);
+                if (row != null) {
+                    row.image = data.getString("imageBase64");
+                } else {
+                    sheet.put(name, new Row(name, "", data.getString("imageBase64")));
+                }
+                return "圖片上傳成功";
+            } else if (data.has("batch")) {
+                JSONArray rows = data.getJSONArray("batch");
+                int updated = 0;
+                Set<String> added = new HashSet<>();
+                for (int i = 0; i < rows.length(); i++) {
+                    JSONObject r = rows.getJSONObject(i);
+                    String name = r.optString("name");
+                    if (name.isEmpty()) continue;
+                    String total = parseFloat(r.optString("total"));
+                    Row row = sheet.get(name);
+                    if (row == null) {
+                        sheet.put(name, new Row(name, total, ""));
+                        added.add(name);
+                    } else {
+                        row.total = total;
+                        if (!added.contains(name)) updated++;
+                    }
+                }
+                return "批次上傳成功：更新 " + updated + " 筆，新增 " + added.size() + " 筆";
+            } else if (!data.optString("name").isEmpty() && !data.optString("total").isEmpty()) {
+                String name = data.getString("name");
+                String total = parseFloat(data.getString("total"));
+                Row row = sheet.get(name);
+                if (row != null) {
+                    row.total = total;
+                } else {
+                    sheet.put(name, new Row(name, total, ""));
+                }
+                return "資料上傳成功";
+            }
+            return "缺少必要參數";
+        } catch (Exception e) {
+            return "Error: " + e;
+        }
+    }
+
+    private void simulateLatency() throws InterruptedException {
+        long delay = LATENCY_MILLIS + (JITTER_MILLIS > 0 ? ThreadLocalRandom.current().nextLong(JITTER_MILLIS + 1) : 0);
+        if (SLOW_RATE > 0 && ThreadLocalRandom.current().nextDouble() < SLOW_RATE) delay += SLOW_MILLIS;
+        if (delay > 0) Thread.sleep(delay);
+    }
+
+    private boolean takeQuota() {
+        if (QUOTA <= 0) return true;
+        long now = System.currentTimeMillis();
+        if (now - quotaWindowStart >= QUOTA_WINDOW_SECONDS * 1000) {
+            synchronized (quotaUsed) {
+                if (now - quotaWindowStart >= QUOTA_WINDOW_SECONDS * 1000) {
+                    quotaWindowStart = now;
+                    quotaUsed.set(0);
+                }
+            }
+        }
+        return quotaUsed.incrementAndGet() <= QUOTA;
+    }
+
+    /**
+     * 與 JavaScript 的 parseFloat(...).toString() 相同：整數不帶小數點，無法解析時為 NaN
+     */
+    static String parseFloat(String s) {
+        java.util.regex.Matcher m = java.util.regex.Pattern
+            .compile("^\\s*[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?").matcher(s);
+        if (!m.find()) return "NaN";
+        return formatNumber(Double.parseDouble(m.group().trim()));
+    }
+
+    private static String formatNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e21) return String.valueOf((long) value);
+        return String.valueOf(value);
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java SheetsStub [port]");
+            System.out.println("Options: -Dstub.latencyMillis=N -Dstub.jitterMillis=N -Dstub.failureRate=0.0~1.0");
+            System.out.println("         -Dstub.slowRate=0.0~1.0 -Dstub.slowMillis=N -Dstub.errorRate=0.0~1.0");
+            System.out.println("         -Dstub.quota=N -Dstub.quotaWindowSeconds=N -Dstub.threads=N -Dstub.users=N");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        SheetsStub stub = new SheetsStub(port);
+        stub.seed(SEED_USERS);
+        stub.start();
+        System.out.println("模擬上游已啟動: http://localhost:" + port + "/exec（延遲 " + LATENCY_MILLIS + " ± " + JITTER_MILLIS
+            + " ms，失敗率 " + FAILURE_RATE + "，配額 " + (QUOTA > 0 ? QUOTA + " 次 / " + QUOTA_WINDOW_SECONDS + " 秒" : "不限") + "）");
+    }
+}
@@ -0,0 +1,21 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 依鍵值（使用者名稱）分段的鎖：不同使用者可並行寫入，同一使用者的寫入依序進行
+ */
+public class StripedLocks {
+    private final ReentrantLock[] locks;
+
+    public StripedLocks(int stripes) {
+        locks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock get(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return locks[(h & 0x7fffffff) % locks.length];
+    }
+}
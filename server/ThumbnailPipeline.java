@@ -0,0 +1,170 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * 在獨立的工作執行緒池上為圖片產生固定尺寸的縮圖（例如 64/150/300 px），
+ * 每張原圖只解碼一次，再由大到小依序縮小；縮圖與原圖一樣以雜湊定址，內容不會改變。
+ *
+ * 上傳時立即排入產生；從 Google Sheets 同步來的圖片則在第一次被要求縮圖時才產生。
+ * JDK 的 ImageIO 不支援 WebP，因此不透明的圖片輸出 JPEG，有透明通道的圖片輸出 PNG。
+ */
+public class ThumbnailPipeline {
+    private static final float JPEG_QUALITY = 0.8f;
+
+    private final BlobStore blobs;
+    // 由大到小排序
+    private final int[] sizes;
+    private final ExecutorService workers;
+    // 同一張圖片同時只會有一個產生工作
+    private final Map<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    // 無法解碼的圖片不再重試
+    private final Set<String> undecodable = ConcurrentHashMap.newKeySet();
+
+    public ThumbnailPipeline(BlobStore blobs, int[] sizes, int threads) {
+        this.blobs = blobs;
+        this.sizes = Arrays.stream(sizes).boxed().sorted(Comparator.reverseOrder()).mapToInt(Integer::intValue).toArray();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "thumbnail-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 解析 "64,150,300" 格式的尺寸設定
+     */
+    static int[] parseSizes(String value) {
+        return Arrays.stream(value.split(",")).map(String::trim).filter(v -> !v.isEmpty())
+            .mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * 排入產生所有尺寸的縮圖（已在產生中則沿用同一個工作）
+     */
+    public CompletableFuture<Void> submit(String hash) {
+        CompletableFuture<Void> job = inFlight.computeIfAbsent(hash, h ->
+            CompletableFuture.runAsync(() -> generate(h), workers));
+        job.whenComplete((v, e) -> inFlight.remove(hash, job));
+        return job;
+    }
+
+    /**
+     * 取得不小於要求尺寸的最小縮圖（要求尺寸大於所有縮圖時回傳原圖）；
+     * 縮圖還沒產生時等待產生完成，無法解碼的圖片也回傳原圖，雜湊不存在時回傳 null
+     */
+    public Path get(String hash, int requested) throws IOException {
+        Path original = blobs.get(hash);
+        if (original == null) return null;
+
+        int size = pick(requested);
+        if (size == 0) return original;
+        Path thumbnail = blobs.derived(hash, String.valueOf(size));
+        if (Files.exists(thumbnail)) return thumbnail;
+        if (undecodable.contains(hash)) return original;
+
+        try {
+            submit(hash).join();
+        } catch (CompletionException e) {
+            throw new IOException("產生縮圖失敗: " + e.getCause().getMessage(), e.getCause());
+        }
+        return Files.exists(thumbnail) ? thumbnail : original;
+    }
+
+    private int pick(int requested) {
+        int best = 0;
+        for (int size : sizes) {
+            if (size >= requested) best = size;
+        }
+        return best;
+    }
+
+    private void generate(String hash) {
+        Path original = blobs.get(hash);
+        if (original == null) return;
+        try {
+            long start = System.currentTimeMillis();
+            BufferedImage image = ImageIO.read(original.toFile());
+            if (image == null) {
+                undecodable.add(hash);
+                System.out.println("無法解碼的圖片格式，不產生縮圖: " + hash);
+                return;
+            }
+            boolean alpha = image.getColorModel().hasAlpha();
+            for (int size : sizes) {
+                image = scaleToFit(image, size, alpha);
+                write(image, blobs.derived(hash, String.valueOf(size)), alpha);
+            }
+            System.out.println("已產生縮圖 " + hash.substring(0, 12) + "… 耗時 " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 等比例縮小到不超過 size x size；每次最多縮小一半，避免一次大幅縮小造成鋸齒
+     */
+    private static BufferedImage scaleToFit(BufferedImage image, int size, boolean alpha) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        double scale = Math.min(1.0, (double) size / Math.max(w, h));
+        int targetW = Math.max(1, (int) Math.round(w * scale));
+        int targetH = Math.max(1, (int) Math.round(h * scale));
+
+        while (w != targetW || h != targetH) {
+            w = Math.max(targetW, w / 2);
+            h = Math.max(targetH, h / 2);
+            BufferedImage next = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, w, h, null);
+            g.dispose();
+            image = next;
+        }
+        return image;
+    }
+
+    private void write(BufferedImage image, Path target, boolean alpha) throws IOException {
+        Path tmp = blobs.tempFile();
+        try {
+            if (alpha) {
+                ImageIO.write(image, "png", tmp.toFile());
+            } else {
+                writeJpeg(image, tmp);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void writeJpeg(BufferedImage image, Path file) throws IOException {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            image = rgb;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
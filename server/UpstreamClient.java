@@ -0,0 +1,513 @@
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import org.json.JSONObject;
+
+/**
+ * 所有上游（Google Apps Script）呼叫共用的 HTTP 用戶端：連線保持開啟重複使用（keep-alive，
+ * 支援時使用 HTTP/2），呼叫皆為非同步並回傳 CompletableFuture。
+ *
+ * 一般資料與圖片各有獨立的同時請求上限（lane），超過上限的呼叫排隊等候，不佔用呼叫端的執行緒。
+ *
+ * 讀取排行榜時，相同內容的讀取若已在進行中就不再另外送出，而是共用同一個呼叫的結果（single-flight），
+ * 大量用戶端同時開啟排行榜時上游只會收到一次請求。
+ *
+ * 讀取不會改變上游資料，可以避險（hedging）：超過該讀取 p95 耗時仍未回應時，另外送出一個相同的請求，
+ * 採用先成功的回應並取消另一個。避險請求只在 lane 有空閒名額時送出，
+ * 並受預算限制（不超過讀取次數的 hedgeBudgetPercent%），避免在上游變慢時加倍壓力。
+ */
+public class UpstreamClient {
+    public static final String DATA = "upstream.data";
+    public static final String IMAGES = "upstream.images";
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(15);
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(15);
+    private static final Duration WRITE_TIMEOUT = Duration.ofSeconds(30);
+    // 圖片可能很大，延長逾時時間
+    private static final Duration IMAGE_TIMEOUT = Duration.ofSeconds(60);
+    // 圖片檔每次讀取的大小（3 的倍數，各段 Base64 可直接串接）
+    private static final int IMAGE_CHUNK = 48 * 1024;
+    // 避險門檻取該讀取耗時的第 95 百分位數，樣本數不足前不避險
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final long HEDGE_MIN_SAMPLES = 20;
+    // 閒置一段時間後最多可連續避險的次數
+    private static final double HEDGE_BURST = 10;
+
+    /**
+     * 同時請求上限：有名額時立即送出，否則排隊，前一個請求完成時再送出下一個
+     */
+    static final class Lane {
+        private final String name;
+        private final int max;
+        private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+        private int active;
+
+        Lane(String name, int max) {
+            this.name = name;
+            this.max = max;
+        }
+
+        /**
+         * 取得名額後執行呼叫，完成時歸還名額；取消回傳的 future 時一併取消進行中的呼叫
+         */
+        <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> call) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            acquire().thenRun(() -> {
+                // 排隊期間已被取消
+                if (result.isDone()) {
+                    release();
+                    return;
+                }
+                CompletableFuture<T> f;
+                try {
+                    f = call.get();
+                } catch (RuntimeException e) {
+                    f = CompletableFuture.failedFuture(e);
+                }
+                f.whenComplete((value, error) -> {
+                    release();
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+                CompletableFuture<T> running = f;
+                result.whenComplete((value, error) -> {
+                    if (result.isCancelled()) running.cancel(true);
+                });
+            });
+            return result;
+        }
+
+        /**
+         * 取得一個名額（有名額時立即完成，否則排隊），使用完畢必須呼叫 release()
+         */
+        CompletableFuture<Void> acquire() {
+            CompletableFuture<Void> granted = new CompletableFuture<>();
+            long queuedAt = System.nanoTime();
+            Runnable start = () -> {
+                Metrics.record(Metrics.WAITS, name, System.nanoTime() - queuedAt, true);
+                granted.complete(null);
+            };
+            boolean now;
+            synchronized (this) {
+                now = active < max;
+                if (now) {
+                    active++;
+                } else {
+                    waiting.add(start);
+                }
+            }
+            if (now) start.run();
+            return granted;
+        }
+
+        /**
+         * 有空閒名額時立即取得並回傳 true，不排隊
+         */
+        synchronized boolean tryAcquire() {
+            if (active >= max) return false;
+            active++;
+            return true;
+        }
+
+        void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) active--;
+            }
+            if (next != null) next.run();
+        }
+
+        synchronized int available() {
+            return max - active;
+        }
+
+        synchronized int queued() {
+            return waiting.size();
+        }
+    }
+
+    private final URI uri;
+    private final HttpClient client;
+    private final Lane data;
+    private final Lane images;
+    // 進行中的讀取（以 URI 為鍵），完成時移除，之後的讀取會重新向上游取得最新資料
+    private final Map<URI, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    // 每次讀取累積的避險額度（hedgeBudgetPercent / 100），每次避險用掉 1
+    private final double hedgeBudget;
+    private final long hedgeMinMillis;
+    private double hedgeTokens;
+
+    /**
+     * hedgeBudgetPercent 為避險請求佔讀取次數的上限（0 表示不避險），hedgeMinMillis 為避險門檻的下限
+     */
+    public UpstreamClient(String url, int maxConcurrent, int maxConcurrentImages,
+                          double hedgeBudgetPercent, long hedgeMinMillis) {
+        this.uri = URI.create(url);
+        this.hedgeBudget = hedgeBudgetPercent / 100;
+        this.hedgeMinMillis = hedgeMinMillis;
+        this.data = new Lane(DATA, maxConcurrent);
+        this.images = new Lane(IMAGES, maxConcurrentImages);
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .executor(Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "upstream-http");
+                t.setDaemon(true);
+                return t;
+            }))
+            .build();
+    }
+
+    /**
+     * 讀取排行榜（sort.gs doGet），includeImages 時走圖片名額；非 200 回應視為失敗。
+     * 相同的讀取已在進行中時直接共用其結果，並計入 "<metric>.collapsed" 次數
+     */
+    public CompletableFuture<String> read(boolean includeImages) {
+        URI target = includeImages ? URI.create(uri + "?includeImages=true") : uri;
+        String metric = includeImages ? "sheets.readImages" : "sheets.read";
+        CompletableFuture<String> shared = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(target, shared);
+        if (existing != null) {
+            Metrics.count(metric + ".collapsed");
+            // 各自取得副本，單一呼叫端取消等待不會影響其他人
+            return existing.copy();
+        }
+
+        HttpRequest request = HttpRequest.newBuilder(target)
+            .timeout(includeImages ? IMAGE_TIMEOUT : READ_TIMEOUT)
+            .header("Accept-Charset", "UTF-8")
+            .GET()
+            .build();
+        hedged(includeImages ? images : data, metric, request).thenApply(UpstreamClient::body)
+            .whenComplete((body, error) -> {
+                // 先移除再完成，之後才到的讀取不會拿到已經完成的舊結果
+                inFlight.remove(target, shared);
+                if (error != null) {
+                    shared.completeExceptionally(error);
+                } else {
+                    shared.complete(body);
+                }
+            });
+        return shared.copy();
+    }
+
+    /**
+     * 送出 JSON 資料（sort.gs doPost），回傳回應內容；非 200 回應視為失敗。
+     * sort.gs 的錯誤也以 200 回應，呼叫端需再檢查內容
+     */
+    public CompletableFuture<String> post(String metric, String json) {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+            .timeout(WRITE_TIMEOUT)
+            .header("Content-Type", "application/json; charset=UTF-8")
+            .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8))
+            .build();
+        return call(data, metric, request).thenApply(UpstreamClient::body);
+    }
+
+    /**
+     * 上傳圖片 {"name": ..., "imageBase64": "..."}：邊讀檔邊做 Base64，整個檔案不會留在記憶體中，回傳 HTTP 狀態碼
+     */
+    public CompletableFuture<Integer> postImage(String name, Path image) {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+            .timeout(IMAGE_TIMEOUT)
+            .header("Content-Type", "application/json; charset=UTF-8")
+            .POST(HttpRequest.BodyPublishers.ofByteArrays(() -> imageJson(name, image)))
+            .build();
+        return call(images, "sheets.uploadImage", request).thenApply(HttpResponse::statusCode);
+    }
+
+    /**
+     * 開啟排行榜（sort.gs doGet）的原始回應串流，不先讀進記憶體；
+     * 非 200 回應視為失敗。串流關閉前持續佔用一個名額，讀完或不再需要時必須 close()
+     */
+    public CompletableFuture<InputStream> open(boolean includeImages) {
+        Lane lane = includeImages ? images : data;
+        String metric = includeImages ? "sheets.relayImages" : "sheets.relay";
+        HttpRequest request = HttpRequest.newBuilder(includeImages ? URI.create(uri + "?includeImages=true") : uri)
+            .timeout(includeImages ? IMAGE_TIMEOUT : READ_TIMEOUT)
+            .header("Accept-Charset", "UTF-8")
+            .GET()
+            .build();
+        return lane.acquire().thenCompose(granted -> {
+            long start = System.nanoTime();
+            return client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                .handle((response, error) -> {
+                    if (error == null && response.statusCode() == 200) {
+                        return (InputStream) new RelayStream(response.body(), lane, metric, start);
+                    }
+                    lane.release();
+                    Metrics.upstream(metric, start, false);
+                    if (error != null) throw error instanceof CompletionException
+                        ? (CompletionException) error : new CompletionException(error);
+                    try {
+                        response.body().close();
+                    } catch (IOException ignored) {
+                    }
+                    throw new CompletionException(new IOException("HTTP 錯誤: " + response.statusCode()));
+                });
+        });
+    }
+
+    /**
+     * 上游回應串流：關閉時歸還名額並記錄耗時（讀到結尾才算成功）
+     */
+    private static final class RelayStream extends FilterInputStream {
+        private final Lane lane;
+        private final String metric;
+        private final long start;
+        private boolean eof;
+        private boolean closed;
+
+        RelayStream(InputStream in, Lane lane, String metric, long start) {
+            super(in);
+            this.lane = lane;
+            this.metric = metric;
+            this.start = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) eof = true;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) eof = true;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                lane.release();
+                Metrics.upstream(metric, start, eof);
+            }
+        }
+    }
+
+    public int available(String lane) {
+        return (lane.equals(IMAGES) ? images : data).available();
+    }
+
+    public int queued(String lane) {
+        return (lane.equals(IMAGES) ? images : data).queued();
+    }
+
+    private CompletableFuture<HttpResponse<String>> call(Lane lane, String metric, HttpRequest request) {
+        return lane.submit(() -> send(metric, request));
+    }
+
+    /**
+     * 送出請求並記錄耗時；回傳 HttpClient 原本的 future，取消時會中止該 HTTP 請求
+     */
+    private CompletableFuture<HttpResponse<String>> send(String metric, HttpRequest request) {
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<String>> exchange =
+            client.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        exchange.whenComplete((response, error) -> {
+            // 避險中被取消的一方不計入耗時
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof CancellationException) return;
+            Metrics.upstream(metric, start, error == null && response.statusCode() == 200);
+        });
+        return exchange;
+    }
+
+    /**
+     * 可避險的讀取：超過門檻仍未回應、lane 有空閒名額且還有預算時送出第二個相同請求，
+     * 先成功者為結果並取消另一個（計入 "<metric>.hedged" / "<metric>.hedgeWon" / "<metric>.hedgeSkipped" 次數）
+     */
+    private CompletableFuture<HttpResponse<String>> hedged(Lane lane, String metric, HttpRequest request) {
+        long delay = hedgeDelayMillis(metric);
+        if (delay < 0) return call(lane, metric, request);
+
+        Race<HttpResponse<String>> race = new Race<>(response -> response.statusCode() == 200);
+        race.add(call(lane, metric, request));
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            if (race.settled()) return;
+            if (!spendHedgeToken() || !lane.tryAcquire()) {
+                Metrics.count(metric + ".hedgeSkipped");
+                return;
+            }
+            Metrics.count(metric + ".hedged");
+            CompletableFuture<HttpResponse<String>> hedge = send(metric, request);
+            hedge.whenComplete((response, error) -> lane.release());
+            if (!race.add(hedge)) {
+                hedge.cancel(true);
+                return;
+            }
+            race.result.thenRun(() -> {
+                if (race.winner() == 1) Metrics.count(metric + ".hedgeWon");
+            });
+        });
+        return race.result;
+    }
+
+    /**
+     * 避險門檻：該讀取耗時的 p95（不低於 hedgeMinMillis），未啟用或樣本不足時回傳 -1；每次呼叫累積一份預算
+     */
+    private long hedgeDelayMillis(String metric) {
+        if (hedgeBudget <= 0) return -1;
+        synchronized (this) {
+            hedgeTokens = Math.min(HEDGE_BURST, hedgeTokens + hedgeBudget);
+        }
+        long p95 = Metrics.percentileMicros(Metrics.UPSTREAM, metric, HEDGE_PERCENTILE, HEDGE_MIN_SAMPLES);
+        return p95 < 0 ? -1 : Math.max(hedgeMinMillis, p95 / 1000);
+    }
+
+    private synchronized boolean spendHedgeToken() {
+        if (hedgeTokens < 1) return false;
+        hedgeTokens -= 1;
+        return true;
+    }
+
+    /**
+     * 同一讀取的多個呼叫：第一個成功（ok 為 true）的為結果並取消其餘；全部失敗時以最後一個失敗為結果
+     */
+    private static final class Race<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        private final Predicate<T> ok;
+        private final List<CompletableFuture<T>> attempts = new ArrayList<>();
+        private int running;
+        private boolean settled;
+        private int winner = -1;
+
+        Race(Predicate<T> ok) {
+            this.ok = ok;
+        }
+
+        /**
+         * 加入一個呼叫，已有結果時回傳 false（呼叫端應自行取消）
+         */
+        boolean add(CompletableFuture<T> attempt) {
+            synchronized (this) {
+                if (settled) return false;
+                attempts.add(attempt);
+                running++;
+            }
+            attempt.whenComplete((value, error) -> finish(attempt, value, error));
+            return true;
+        }
+
+        synchronized boolean settled() {
+            return settled;
+        }
+
+        /**
+         * 成功的呼叫是第幾個加入的（0 為原本的呼叫），尚無結果或全部失敗時為 -1
+         */
+        synchronized int winner() {
+            return winner;
+        }
+
+        private void finish(CompletableFuture<T> attempt, T value, Throwable error) {
+            List<CompletableFuture<T>> losers;
+            synchronized (this) {
+                running--;
+                boolean success = error == null && ok.test(value);
+                // 還有其他呼叫在進行時，失敗的一方不決定結果
+                if (settled || (!success && running > 0)) return;
+                settled = true;
+                if (success) winner = attempts.indexOf(attempt);
+                losers = new ArrayList<>(attempts);
+                losers.remove(attempt);
+            }
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+            for (CompletableFuture<T> loser : losers) {
+                loser.cancel(true);
+            }
+        }
+    }
+
+    private static String body(HttpResponse<String> response) {
+        if (response.statusCode() != 200) {
+            throw new CompletionException(new IOException("HTTP 錯誤: " + response.statusCode()));
+        }
+        return response.body();
+    }
+
+    /**
+     * 依序產生 JSON 開頭、逐段 Base64 編碼的圖片內容與 JSON 結尾（每次傳送重新開檔，可重試）
+     */
+    private static Iterator<byte[]> imageJson(String name, Path image) {
+        return new Iterator<>() {
+            private byte[] next = ("{\"name\":" + JSONObject.quote(name) + ",\"imageBase64\":\"").getBytes(StandardCharsets.UTF_8);
+            private InputStream in;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                return next != null || !done;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                if (next != null) {
+                    byte[] b = next;
+                    next = null;
+                    return b;
+                }
+                try {
+                    if (in == null) in = new BufferedInputStream(Files.newInputStream(image), IMAGE_CHUNK);
+                    byte[] chunk = in.readNBytes(IMAGE_CHUNK);
+                    if (chunk.length == IMAGE_CHUNK) return Base64.getEncoder().encode(chunk);
+                    in.close();
+                    done = true;
+                    byte[] encoded = Base64.getEncoder().encode(chunk);
+                    byte[] tail = Arrays.copyOf(encoded, encoded.length + 2);
+                    tail[encoded.length] = '"';
+                    tail[encoded.length + 1] = '}';
+                    return tail;
+                } catch (IOException e) {
+                    done = true;
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * 等待非同步呼叫的結果，把包裝過的例外還原成 IOException
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new InterruptedIOException("等待上游回應時被中斷");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            throw new IOException(cause);
+        }
+    }
+}
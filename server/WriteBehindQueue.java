@@ -0,0 +1,119 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * 延後寫入 Google Sheets 的佇列：同一使用者的多次更新只保留最後一筆，
+ * 定時或累積到一定數量時以單一批次請求送出。
+ *
+ * 每筆更新帶有本機日誌的序號；批次送出成功後回報「序號不超過此值的更新都已送達上游」，
+ * 重新啟動時由日誌補送該序號之後的更新，佇列本身不需要寫入磁碟。
+ */
+public class WriteBehindQueue {
+
+    /**
+     * 實際送出批次的介面，回傳 false 表示失敗，資料會放回佇列等待下次送出
+     */
+    public interface Sender {
+        boolean send(Map<String, String> batch);
+    }
+
+    /**
+     * 一位使用者待送出的最新碳排放量與其日誌序號
+     */
+    private static final class Pending {
+        final String total;
+        final long seq;
+
+        Pending(String total, long seq) {
+            this.total = total;
+            this.seq = seq;
+        }
+    }
+
+    private final Sender sender;
+    private final int batchSize;
+    // 序號不超過此值的更新都已 enqueue（取自 DataStore.watermark）
+    private final LongSupplier enqueuedWatermark;
+    // 批次送出成功後回報已送達上游的序號
+    private final LongConsumer onPropagated;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private long propagated = -1;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sheets-write-behind");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public WriteBehindQueue(Sender sender, long flushMillis, int batchSize,
+                            LongSupplier enqueuedWatermark, LongConsumer onPropagated) {
+        this.sender = sender;
+        this.batchSize = batchSize;
+        this.enqueuedWatermark = enqueuedWatermark;
+        this.onPropagated = onPropagated;
+        flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 加入（或覆蓋）一位使用者的最新碳排放量，seq 為該筆更新在本機日誌中的序號
+     */
+    public void enqueue(String name, String total, long seq) {
+        pending.put(name, new Pending(total, seq));
+        if (pending.size() >= batchSize) {
+            flusher.execute(this::flush);
+        }
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * 取出目前所有待送資料並送出；只在 flusher 執行緒上執行，因此批次不會交錯
+     */
+    private void flush() {
+        if (pending.isEmpty()) return;
+
+        Map<String, Pending> batch = new LinkedHashMap<>();
+        for (String name : pending.keySet()) {
+            Pending p = pending.remove(name);
+            if (p != null) batch.put(name, p);
+            if (batch.size() >= batchSize) break;
+        }
+        if (batch.isEmpty()) return;
+
+        Map<String, String> totals = new LinkedHashMap<>();
+        batch.forEach((name, p) -> totals.put(name, p.total));
+        boolean ok;
+        try {
+            ok = sender.send(totals);
+        } catch (RuntimeException e) {
+            System.out.println("Error flushing batch to Google Sheets: " + e.getMessage());
+            ok = false;
+        }
+        if (!ok) {
+            // 放回佇列，但不覆蓋送出期間收到的較新資料
+            batch.forEach(pending::putIfAbsent);
+            return;
+        }
+        reportPropagated();
+        if (pending.size() >= batchSize) {
+            flusher.execute(this::flush);
+        }
+    }
+
+    /**
+     * 已送達的序號 = 已 enqueue 的 watermark 與仍在佇列中最舊一筆之前，兩者取小
+     */
+    private void reportPropagated() {
+        long safe = enqueuedWatermark.getAsLong();
+        for (Pending p : pending.values()) {
+            safe = Math.min(safe, p.seq - 1);
+        }
+        if (safe > propagated) {
+            propagated = safe;
+            onPropagated.accept(safe);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ 伺服器 CPU 效能測試（JMH），直接編譯上一層 server/ 的原始碼：
+ ./gradlew -p server/bench jmh
+ ./gradlew -p server/bench jmh -Pbench.includes=ProtocolBenchmark
+ 結果寫入 build/results/jmh/results.json
+*/
+plugins {
+    java
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+repositories {
+    mavenCentral()
+}
+
+sourceSets {
+    main {
+        java {
+            setSrcDirs(listOf(".."))
+            exclude("bench/**")
+        }
+    }
+}
+
+dependencies {
+    implementation(files("../lib/json-20231013.jar"))
+}
+
+tasks.withType<JavaCompile> {
+    options.encoding = "UTF-8"
+    options.release.set(17)
+}
+
+jmh {
+    jmhVersion.set("1.37")
+    (findProperty("bench.includes") as String?)?.let { includes.add(it) }
+    warmupIterations.set(3)
+    warmup.set("1s")
+    iterations.set(5)
+    timeOnIteration.set("1s")
+    fork.set(1)
+    resultFormat.set("JSON")
+}
@@ -0,0 +1,2 @@
+// 獨立的 JMH 效能測試專案，不屬於 Android 的 Gradle 建置
+rootProject.name = "carbon-server-bench"
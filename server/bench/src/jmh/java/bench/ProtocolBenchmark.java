@@ -0,0 +1,55 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 單一請求從解析命令、處理到寫出回應的 CPU 成本（記憶體串流，不含網路與 Google Sheets）。
+ * GET_RANKING 在內容未變動時會命中回應快取，UPLOAD_DATA 則每次都會讓排行榜重新序列化。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProtocolBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int users;
+
+    @Param({"0", "51200"})
+    public int avatarBytes;
+
+    @Param({"GET_RANKING", "GET_RANKING_PAGE 0 50", "GET_MY_RANK user_5", "UPLOAD_DATA"})
+    public String command;
+
+    // 交握功能旗標：0 不壓縮，2 為 deflate
+    @Param({"0", "2"})
+    public int capabilities;
+
+    private byte[] request;
+    private final ByteArrayOutputStream response = new ByteArrayOutputStream(1 << 20);
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // 伺服器每個請求都會印出記錄，避免洗版 JMH 輸出（字串組合的成本仍會計入）
+        System.setOut(new PrintStream(OutputStream.nullOutputStream(), false, "UTF-8"));
+        ServerAccess.install(users, avatarBytes);
+        if (!command.equals("UPLOAD_DATA")) {
+            request = ServerAccess.v2Request(capabilities, command);
+        }
+    }
+
+    @Benchmark
+    public int handle() throws Throwable {
+        byte[] req = request;
+        if (req == null) {
+            // 每次更新不同使用者，讓排行榜版本持續變動
+            int i = next++ % users;
+            req = ServerAccess.v2Request(capabilities, "UPLOAD_DATA", "user_" + i + "," + ServerAccess.total(i + next));
+        }
+        response.reset();
+        ServerAccess.serve(req, response);
+        return response.size();
+    }
+}
@@ -0,0 +1,73 @@
+package bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * RankingCache 的序列化與讀取路徑：render 為內容變動後重新產生排行榜 JSON 的成本，
+ * ranking 為版本未變動時命中快取，page 為分頁查詢，refresh 為解析上游 JSON 並合併（含圖片去重）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RankingCacheBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Ranking {
+        @Param({"10", "1000", "100000"})
+        public int users;
+
+        Object cache;
+
+        @Setup
+        public void setUp() throws Exception {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream(), false, "UTF-8"));
+            cache = ServerAccess.install(users, 0);
+        }
+    }
+
+    /**
+     * 含圖片的排行榜；使用者數量較少，避免 100k x 50KB 的上游內容超過記憶體
+     */
+    @State(Scope.Benchmark)
+    public static class Upstream {
+        @Param({"10", "100", "1000"})
+        public int users;
+
+        @Param({"0", "5120", "51200"})
+        public int avatarBytes;
+
+        Object cache;
+
+        @Setup
+        public void setUp() throws Exception {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream(), false, "UTF-8"));
+            cache = ServerAccess.install(users, avatarBytes);
+        }
+    }
+
+    @Benchmark
+    public String render(Ranking s) throws Throwable {
+        return ServerAccess.render(s.cache, false);
+    }
+
+    @Benchmark
+    public String rankingCached(Ranking s) throws Throwable {
+        return ServerAccess.ranking(s.cache);
+    }
+
+    @Benchmark
+    public String pageMiddle(Ranking s) throws Throwable {
+        return ServerAccess.page(s.cache, s.users / 2, 50, false);
+    }
+
+    @Benchmark
+    public void writeRankingWithImages(Upstream s) throws Throwable {
+        ServerAccess.writeRankingWithImages(s.cache, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void refresh(Upstream s) throws Throwable {
+        ServerAccess.refresh(s.cache);
+    }
+}
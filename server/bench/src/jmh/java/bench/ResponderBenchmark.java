@@ -0,0 +1,50 @@
+package bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * v2 回應的編碼路徑（Protocol.V2Responder 與 ChunkedBody）：text 一次寫出並視需要整段壓縮，
+ * body 以串流切成訊框並邊寫邊壓縮。內容為實際的排行榜 JSON，輸出丟棄，不含網路成本
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponderBenchmark {
+    // 模擬 BufferedWriter 逐段寫入 body 的大小
+    private static final int WRITE_SIZE = 8192;
+
+    @Param({"10", "1000", "100000"})
+    public int users;
+
+    // 協商的壓縮格式：0 不壓縮，2 為 deflate
+    @Param({"0", "2"})
+    public int codec;
+
+    private String ranking;
+    private byte[] rankingBytes;
+    private final DataOutputStream out = new DataOutputStream(OutputStream.nullOutputStream());
+
+    @Setup
+    public void setUp() throws Throwable {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream(), false, "UTF-8"));
+        ranking = ServerAccess.ranking(ServerAccess.install(users, 0));
+        rankingBytes = ranking.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void text() throws Throwable {
+        ServerAccess.text(ServerAccess.v2Responder(out, codec), ranking);
+    }
+
+    @Benchmark
+    public void body() throws Throwable {
+        try (OutputStream body = ServerAccess.body(ServerAccess.v2Responder(out, codec))) {
+            for (int off = 0; off < rankingBytes.length; off += WRITE_SIZE) {
+                body.write(rankingBytes, off, Math.min(WRITE_SIZE, rankingBytes.length - off));
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package bench;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * 伺服器類別都在預設套件中，而 JMH 要求測試類別有套件名稱，因此透過 MethodHandle 呼叫。
+ */
+final class ServerAccess {
+    // 附上圖片的使用者數量上限（再多會讓上游 JSON 超過記憶體）
+    static final int MAX_USERS_WITH_AVATAR = 1000;
+    // 不同圖片的數量，其餘使用者共用（也會測到 BlobStore 的去重）
+    private static final int DISTINCT_AVATARS = 16;
+
+    private static final MethodHandle SERVE;
+    // Protocol.V2Responder 建構子與 Responder 的 text()/body()
+    private static final MethodHandle NEW_V2_RESPONDER;
+    private static final MethodHandle TEXT;
+    private static final MethodHandle BODY;
+    // RankingCache 的讀取路徑；render 為 private，沒有版本快取
+    private static final MethodHandle RENDER;
+    private static final MethodHandle RANKING;
+    private static final MethodHandle PAGE;
+    private static final MethodHandle WRITE_WITH_IMAGES;
+    private static final MethodHandle REFRESH;
+
+    static {
+        try {
+            Class<?> protocol = Class.forName("Protocol");
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(protocol, MethodHandles.lookup());
+            SERVE = lookup.findStatic(protocol, "serve",
+                MethodType.methodType(void.class, DataInputStream.class, DataOutputStream.class, Socket.class));
+
+            Class<?> responder = Class.forName("Protocol$Responder");
+            Class<?> v2Responder = Class.forName("Protocol$V2Responder");
+            NEW_V2_RESPONDER = lookup.findConstructor(v2Responder,
+                    MethodType.methodType(void.class, DataOutputStream.class, int.class, int.class, boolean.class))
+                .asType(MethodType.methodType(Object.class, DataOutputStream.class, int.class, int.class, boolean.class));
+            TEXT = lookup.findVirtual(responder, "text", MethodType.methodType(void.class, String.class))
+                .asType(MethodType.methodType(void.class, Object.class, String.class));
+            BODY = lookup.findVirtual(responder, "body", MethodType.methodType(OutputStream.class))
+                .asType(MethodType.methodType(OutputStream.class, Object.class));
+
+            Class<?> rankingCache = Class.forName("RankingCache");
+            MethodHandles.Lookup cacheLookup = MethodHandles.privateLookupIn(rankingCache, MethodHandles.lookup());
+            RENDER = cacheLookup.findVirtual(rankingCache, "render", MethodType.methodType(String.class, boolean.class))
+                .asType(MethodType.methodType(String.class, Object.class, boolean.class));
+            RANKING = cacheLookup.findVirtual(rankingCache, "ranking", MethodType.methodType(String.class))
+                .asType(MethodType.methodType(String.class, Object.class));
+            PAGE = cacheLookup.findVirtual(rankingCache, "page",
+                    MethodType.methodType(String.class, int.class, int.class, boolean.class))
+                .asType(MethodType.methodType(String.class, Object.class, int.class, int.class, boolean.class));
+            WRITE_WITH_IMAGES = cacheLookup.findVirtual(rankingCache, "writeRankingWithImages",
+                    MethodType.methodType(void.class, OutputStream.class))
+                .asType(MethodType.methodType(void.class, Object.class, OutputStream.class));
+            REFRESH = cacheLookup.findVirtual(rankingCache, "refresh", MethodType.methodType(void.class))
+                .asType(MethodType.methodType(void.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ServerAccess() {
+    }
+
+    /**
+     * 以 users 位使用者建立本機資料庫、圖片儲存與排行榜快取，並設定給 Server 使用，回傳 RankingCache
+     */
+    static Object install(int users, int avatarBytes) throws Exception {
+        Path dir = Files.createTempDirectory("carbon-bench");
+        dir.toFile().deleteOnExit();
+
+        Class<?> dataStore = Class.forName("DataStore");
+        Object store = dataStore.getMethod("open", Path.class, boolean.class).invoke(null, dir.resolve("data.txt"), false);
+        var append = dataStore.getMethod("append", String.class, String.class);
+        for (int i = 0; i < users; i++) {
+            append.invoke(store, "user_" + i, String.valueOf(total(i)));
+        }
+
+        Class<?> blobStore = Class.forName("BlobStore");
+        Object blobs = blobStore.getConstructor(Path.class).newInstance(dir.resolve("blobs"));
+
+        String upstream = upstreamJson(users, avatarBytes);
+        Class<?> loaderType = Class.forName("RankingCache$Loader");
+        Object loader = Proxy.newProxyInstance(loaderType.getClassLoader(), new Class<?>[]{loaderType},
+            (proxy, method, args) -> method.getName().equals("load") ? upstream : null);
+
+        Class<?> rankingCache = Class.forName("RankingCache");
+        Object cache = rankingCache.getConstructor(dataStore, blobStore, loaderType).newInstance(store, blobs, loader);
+        rankingCache.getMethod("refresh").invoke(cache);
+
+        var useStorage = Class.forName("Server").getDeclaredMethod("useStorage", dataStore, blobStore, rankingCache);
+        useStorage.setAccessible(true);
+        useStorage.invoke(null, store, blobs, cache);
+        return cache;
+    }
+
+    /**
+     * 模擬 sort.gs doGet?includeImages=true 的回應
+     */
+    static String upstreamJson(int users, int avatarBytes) {
+        List<String> avatars = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < DISTINCT_AVATARS && avatarBytes > 0; i++) {
+            byte[] image = new byte[avatarBytes];
+            random.nextBytes(image);
+            avatars.add(Base64.getEncoder().encodeToString(image));
+        }
+        JSONArray arr = new JSONArray();
+        for (int i = 0; i < users; i++) {
+            JSONObject obj = new JSONObject();
+            obj.put("name", "user_" + i);
+            obj.put("total", String.valueOf(total(i)));
+            obj.put("image", avatars.isEmpty() || i >= MAX_USERS_WITH_AVATAR ? "" : avatars.get(i % avatars.size()));
+            arr.put(obj);
+        }
+        return arr.toString();
+    }
+
+    static double total(int i) {
+        return (i * 7919L % 100000) / 10.0;
+    }
+
+    /**
+     * 處理一個完整的請求（與 NIO 前端相同，使用記憶體串流）
+     */
+    static void serve(byte[] request, OutputStream response) throws Throwable {
+        SERVE.invokeExact(new DataInputStream(new ByteArrayInputStream(request)),
+            new DataOutputStream(response), (Socket) null);
+    }
+
+    /**
+     * 建立寫入 out 的 v2 回應物件，codec 為協商的壓縮格式（0 不壓縮，2 為 deflate）
+     */
+    static Object v2Responder(DataOutputStream out, int codec) throws Throwable {
+        return (Object) NEW_V2_RESPONDER.invokeExact(out, 1, codec, false);
+    }
+
+    static void text(Object responder, String message) throws Throwable {
+        TEXT.invokeExact(responder, message);
+    }
+
+    static OutputStream body(Object responder) throws Throwable {
+        return (OutputStream) BODY.invokeExact(responder);
+    }
+
+    static String render(Object cache, boolean withImages) throws Throwable {
+        return (String) RENDER.invokeExact(cache, withImages);
+    }
+
+    static String ranking(Object cache) throws Throwable {
+        return (String) RANKING.invokeExact(cache);
+    }
+
+    static String page(Object cache, int offset, int limit, boolean withImages) throws Throwable {
+        return (String) PAGE.invokeExact(cache, offset, limit, withImages);
+    }
+
+    static void writeRankingWithImages(Object cache, OutputStream out) throws Throwable {
+        WRITE_WITH_IMAGES.invokeExact(cache, out);
+    }
+
+    static void refresh(Object cache) throws Throwable {
+        REFRESH.invokeExact(cache);
+    }
+
+    /**
+     * v2 交握加上一個請求訊框，payload 為 writeUTF 命令與參數
+     */
+    static byte[] v2Request(int capabilities, String command, String... args) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream p = new DataOutputStream(payload);
+        p.writeUTF(command);
+        for (String arg : args) {
+            p.writeUTF(arg);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(new byte[]{'C', 'F', 'P', 2});
+        out.writeInt(capabilities);
+        out.writeByte(1);
+        out.writeByte(0);
+        out.writeInt(1);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+        return bytes.toByteArray();
+    }
+}
@@ -9,56 +9,28 @@ function doPost(e) {
     // 🔹 處理圖片上傳
     if (data.imageBase64) {
       var name = data.name || "未知使用者";
-      
-      // 檢查使用者是否已存在
-      var lastRow = sheet.getLastRow();
-      var found = false;
-      
-      for (var i = 2; i <= lastRow; i++) {
-        var existingName = sheet.getRange(i, 1).getValue();
-        if (existingName == name) {
-          // 更新現有使用者的圖片（C 欄）
-          sheet.getRange(i, 3).setValue(data.imageBase64);
-          found = true;
-          Logger.log("更新使用者圖片: " + name);
-          break;
-        }
-      }
-      
-      // 如果找不到，新增一列
-      if (!found) {
-        sheet.appendRow([name, "", data.imageBase64]);
-        Logger.log("新增使用者圖片: " + name);
-      }
+      var added = withLock(function() {
+        return upsertColumn(sheet, name, 3, data.imageBase64, [name, "", data.imageBase64]);
+      });
+      Logger.log((added ? "新增" : "更新") + "使用者圖片: " + name);
       
       return ContentService.createTextOutput("圖片上傳成功");
     }
     
+    // 🔹 處理批次資料上傳（伺服器合併同一使用者的更新後一次送出）
+    else if (data.batch) {
+      var result = upsertBatch(sheet, data.batch);
+      return ContentService.createTextOutput("批次上傳成功：更新 " + result.updated + " 筆，新增 " + result.added + " 筆");
+    }
+    
     // 🔹 處理一般資料上傳
     else if (data.name && data.total) {
       var name = data.name;
       var total = parseFloat(data.total);
-      
-      // 檢查使用者是否已存在
-      var lastRow = sheet.getLastRow();
-      var found = false;
-      
-      for (var i = 2; i <= lastRow; i++) {
-        var existingName = sheet.getRange(i, 1).getValue();
-        if (existingName == name) {
-          // 更新現有使用者的碳排放量（B 欄）
-          sheet.getRange(i, 2).setValue(total);
-          found = true;
-          Logger.log("更新使用者資料: " + name + " = " + total);
-          break;
-        }
-      }
-      
-      // 如果找不到，新增一列
-      if (!found) {
-        sheet.appendRow([name, total, ""]);
-        Logger.log("新增使用者資料: " + name + " = " + total);
-      }
+      var added = withLock(function() {
+        return upsertColumn(sheet, name, 2, total, [name, total, ""]);
+      });
+      Logger.log((added ? "新增" : "更新") + "使用者資料: " + name + " = " + total);
       
       return ContentService.createTextOutput("資料上傳成功");
     }
@@ -66,11 +38,83 @@ function doPost(e) {
     return ContentService.createTextOutput("缺少必要參數");
     
   } catch (error) {
+    // 錯誤同樣以 HTTP 200 回應（Apps Script 無法設定狀態碼），伺服器以「批次上傳成功」開頭判斷批次是否送達
     Logger.log("Error: " + error);
     return ContentService.createTextOutput("Error: " + error.toString());
   }
 }
 
+// 🔹 所有寫入工作表的操作都在同一個 script lock 內進行：
+//    新增列的位置必須在鎖內計算，否則同時進行的圖片上傳與批次上傳可能寫到同一列而互相覆蓋
+function withLock(fn) {
+  var lock = LockService.getScriptLock();
+  lock.waitLock(30000);
+  try {
+    return fn();
+  } finally {
+    lock.releaseLock();
+  }
+}
+
+// 🔹 更新既有使用者的某一欄，找不到時在最後新增 newRow；新增時回傳 true（必須在 withLock 內呼叫）
+function upsertColumn(sheet, name, column, value, newRow) {
+  var lastRow = sheet.getLastRow();
+  var names = lastRow >= 2 ? sheet.getRange(2, 1, lastRow - 1, 1).getValues() : [];
+  for (var i = 0; i < names.length; i++) {
+    if (names[i][0] == name) {
+      sheet.getRange(i + 2, column).setValue(value);
+      return false;
+    }
+  }
+  sheet.appendRow(newRow);
+  return true;
+}
+
+// 🔹 批次更新/新增碳排放量：只讀一次 A、B 欄，並以一次 setValues 寫回，避免逐列呼叫
+function upsertBatch(sheet, rows) {
+  return withLock(function() {
+    var lastRow = sheet.getLastRow();
+    var existing = lastRow >= 2 ? sheet.getRange(2, 1, lastRow - 1, 2).getValues() : [];
+    
+    // 姓名 → existing 陣列索引
+    var rowIndex = {};
+    for (var i = 0; i < existing.length; i++) {
+      if (existing[i][0]) rowIndex[existing[i][0]] = i;
+    }
+    
+    var newRows = [];
+    var newIndex = {};
+    var updated = 0;
+    
+    for (var j = 0; j < rows.length; j++) {
+      var name = rows[j].name;
+      if (!name) continue;
+      var total = parseFloat(rows[j].total);
+      
+      if (rowIndex.hasOwnProperty(name)) {
+        existing[rowIndex[name]][1] = total;
+        updated++;
+      } else if (newIndex.hasOwnProperty(name)) {
+        newRows[newIndex[name]][1] = total;
+      } else {
+        newIndex[name] = newRows.length;
+        newRows.push([name, total, ""]);
+      }
+    }
+    
+    if (updated > 0) {
+      var totals = existing.map(function(row) { return [row[1]]; });
+      sheet.getRange(2, 2, totals.length, 1).setValues(totals);
+    }
+    if (newRows.length > 0) {
+      sheet.getRange(lastRow + 1, 1, newRows.length, 3).setValues(newRows);
+    }
+    
+    Logger.log("批次上傳: 更新 " + updated + " 筆，新增 " + newRows.length + " 筆");
+    return { updated: updated, added: newRows.length };
+  });
+}
+
 function doGet(e) {
   try {
     var sheet = SpreadsheetApp.getActiveSpreadsheet().getActiveSheet();